@@ -0,0 +1,74 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import org.hl7.fhir.r4b.model.Bundle;
+import org.hl7.fhir.r4b.model.Enumerations;
+import org.hl7.fhir.r4b.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4b.model.Observation;
+import org.hl7.fhir.r4b.model.Patient;
+import org.hl7.fhir.r4b.model.Quantity;
+
+/*
+ * The test content used by the benchmarks (as json, so the parse cost is included where relevant)
+ */
+public class BenchmarkData {
+
+  public static final String PATIENT = "patient";
+  public static final String BUNDLE = "bundle";
+
+  public static String readResource(String name) {
+    try (InputStream is = BenchmarkData.class.getResourceAsStream("/" + name)) {
+      return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // the content for the named resource (patient: a small patient, bundle: a ~5MB collection bundle)
+  public static String json(String name) {
+    if (BUNDLE.equals(name))
+      return largeBundle(5 * 1024 * 1024);
+    return readResource("patient.json");
+  }
+
+  // the expression used for each of the resources
+  public static String expression(String name) {
+    if (BUNDLE.equals(name))
+      return "entry.resource.ofType(Observation).where((value as Quantity).value > 50).subject.reference.distinct().count()";
+    return "name.where(use = 'official').given.join(' ') & ' ' & birthDate.toString()";
+  }
+
+  public static String largeBundle(int approximateSize) {
+    FhirContext ctx = FhirContext.forR4BCached();
+    Bundle bundle = new Bundle();
+    bundle.setType(Bundle.BundleType.COLLECTION);
+    int n = 0;
+    String json;
+    do {
+      for (int i = 0; i < 500; i++, n++) {
+        Patient patient = new Patient();
+        patient.setId("p" + n);
+        patient.addName().setFamily("Family" + n).addGiven("Given" + n).addGiven("Middle");
+        patient.setGender(n % 2 == 0 ? AdministrativeGender.FEMALE : AdministrativeGender.MALE);
+        patient.addAddress().addLine(n + " Some Street").setCity("PleasantVille").setPostalCode("3999");
+        bundle.addEntry().setFullUrl("http://example.org/fhir/Patient/p" + n).setResource(patient);
+
+        Observation obs = new Observation();
+        obs.setId("o" + n);
+        obs.setStatus(Enumerations.ObservationStatus.FINAL);
+        obs.getCode().addCoding().setSystem("http://loinc.org").setCode("2345-7");
+        obs.getSubject().setReference("Patient/p" + n);
+        obs.setValue(new Quantity().setValue(n % 100).setUnit("mg").setSystem("http://unitsofmeasure.org").setCode("mg"));
+        bundle.addEntry().setFullUrl("http://example.org/fhir/Observation/o" + n).setResource(obs);
+      }
+      json = ctx.newJsonParser().encodeResourceToString(bundle);
+    } while (json.length() < approximateSize);
+    return json;
+  }
+}
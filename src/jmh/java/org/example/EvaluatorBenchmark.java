@@ -0,0 +1,77 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.parser.IParser;
+
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4b.context.IWorkerContext;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * End to end cost of the HAPI $fhirpath operations (parse the request resource, evaluate,
+ * and encode the response).
+ * Run with: mvn -Pbenchmark test-compile exec:exec (which includes the gc profiler)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvaluatorBenchmark {
+
+  @Param({ BenchmarkData.PATIENT, BenchmarkData.BUNDLE })
+  public String resource;
+
+  private FhirContext _ctx;
+  private FhirContext _ctxR5;
+  private EvaluatorHAPI _evaluator;
+  private EvaluatorHAPI_R5 _evaluatorR5;
+
+  private String _json;
+  private String _expression;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    _ctx = FhirContext.forR4B();
+    _ctxR5 = FhirContext.forR5();
+    IWorkerContext workerContext = new HapiWorkerContext(_ctx, new DefaultProfileValidationSupport(_ctx));
+    _evaluator = new EvaluatorHAPI(_ctx, workerContext);
+    _evaluatorR5 = new EvaluatorHAPI_R5(_ctxR5);
+
+    _json = BenchmarkData.json(resource);
+    _expression = BenchmarkData.expression(resource);
+  }
+
+  @Benchmark
+  public String evaluateHAPI() {
+    IParser parser = _ctx.newJsonParser();
+    IBaseResource input = parser.parseResource(_json);
+    IBaseParameters result = _evaluator.evaluate(null, input, null, _expression, null, null, null, null, null, null, null);
+    return parser.encodeResourceToString(result);
+  }
+
+  @Benchmark
+  public String evaluateHAPI_R5() {
+    IParser parser = _ctxR5.newJsonParser();
+    IBaseResource input = parser.parseResource(_json);
+    IBaseParameters result = _evaluatorR5.evaluate(null, input, null, _expression, null, null, null);
+    return parser.encodeResourceToString(result);
+  }
+}
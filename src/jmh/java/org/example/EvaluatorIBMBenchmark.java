@@ -0,0 +1,61 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.parser.IParser;
+
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.fhir.path.exception.FHIRPathException;
+
+/*
+ * End to end cost of the IBM $fhirpath-ibm operation (same content as the EvaluatorBenchmark)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvaluatorIBMBenchmark {
+
+  @Param({ BenchmarkData.PATIENT, BenchmarkData.BUNDLE })
+  public String resource;
+
+  private FhirContext _ctx;
+  private EvaluatorIBM _evaluator;
+  private String _json;
+  private String _expression;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    _ctx = FhirContext.forR4B();
+    _evaluator = new EvaluatorIBM(_ctx, new HapiWorkerContext(_ctx, new DefaultProfileValidationSupport(_ctx)));
+    _json = BenchmarkData.json(resource);
+    _expression = BenchmarkData.expression(resource);
+  }
+
+  @Benchmark
+  public String evaluateIBM() throws FHIRPathException {
+    IParser parser = _ctx.newJsonParser();
+    IBaseResource input = parser.parseResource(_json);
+    IBaseParameters result = _evaluator.evaluate(null, input, null, _expression, null, null);
+    return parser.encodeResourceToString(result);
+  }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+
+import org.hl7.fhir.r4b.fhirpath.ExpressionNode;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathUtilityClasses.FunctionDetails;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4b.model.Base;
+import org.hl7.fhir.r4b.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The java sum()/max() over the Observation values in the ~5MB bundle, against the same thing
+ * written with aggregate(), and against just selecting the values (the cost of the path itself).
+ * Also the function lookup the engine does when parsing (and executing) a custom function.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FunctionBenchmark {
+
+  private static final String VALUES = "entry.resource.ofType(Observation).value.ofType(Quantity).value";
+
+  private FHIRPathEngine _engine;
+  private FHIRPathTestEvaluationServices _services;
+  private Bundle _bundle;
+  private ExpressionNode _path;
+  private ExpressionNode _sum;
+  private ExpressionNode _sumAggregate;
+  private ExpressionNode _max;
+  private ExpressionNode _maxAggregate;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    FhirContext ctx = FhirContext.forR4B();
+    _services = new FHIRPathTestEvaluationServices(ctx);
+    _engine = new FHIRPathEngine(new HapiWorkerContext(ctx, new DefaultProfileValidationSupport(ctx)));
+    _engine.setHostServices(_services);
+    _bundle = (Bundle) ctx.newJsonParser().parseResource(BenchmarkData.json(BenchmarkData.BUNDLE));
+    _path = _engine.parse(VALUES);
+    _sum = _engine.parse(VALUES + ".sum()");
+    _sumAggregate = _engine.parse(VALUES + ".aggregate($this + $total, 0)");
+    _max = _engine.parse(VALUES + ".max()");
+    _maxAggregate = _engine.parse(VALUES + ".aggregate(iif($total.empty() or $this > $total, $this, $total))");
+  }
+
+  private List<Base> evaluate(ExpressionNode expression) {
+    return _engine.evaluate(new FHIRPathRequestContext(null), _bundle, _bundle, _bundle, expression);
+  }
+
+  @Benchmark
+  public List<Base> path() {
+    return evaluate(_path);
+  }
+
+  @Benchmark
+  public List<Base> sum() {
+    return evaluate(_sum);
+  }
+
+  @Benchmark
+  public List<Base> sumAggregate() {
+    return evaluate(_sumAggregate);
+  }
+
+  @Benchmark
+  public List<Base> max() {
+    return evaluate(_max);
+  }
+
+  @Benchmark
+  public List<Base> maxAggregate() {
+    return evaluate(_maxAggregate);
+  }
+
+  @Benchmark
+  public FunctionDetails resolveFunction() {
+    return _services.resolveFunction(_engine, "sum");
+  }
+}
@@ -0,0 +1,77 @@
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.parser.IParser;
+
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4b.model.BooleanType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * $fhirpath over the ~5MB bundle (compact, as the current path) against $fhirpath-large reading
+ * the same bytes into the HAPI model and into the element model.
+ * The gc profiler's gc.alloc.rate.norm is the allocation per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class LargeInputBenchmark {
+
+  private FhirContext _ctx;
+  private EvaluatorHAPI _evaluator;
+  private byte[] _json;
+  private String _expression;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    _ctx = FhirContext.forR4B();
+    _evaluator = new EvaluatorHAPI(_ctx, new HapiWorkerContext(_ctx, new DefaultProfileValidationSupport(_ctx)));
+    _json = BenchmarkData.json(BenchmarkData.BUNDLE).getBytes(StandardCharsets.UTF_8);
+    _expression = BenchmarkData.expression(BenchmarkData.BUNDLE);
+  }
+
+  @Benchmark
+  public String fhirpath() {
+    IParser parser = _ctx.newJsonParser();
+    IBaseResource input = parser.parseResource(new String(_json, StandardCharsets.UTF_8));
+    IBaseParameters result = _evaluator.evaluate(null, input, null, _expression, null, null, null,
+        new BooleanType(true), null, null, null);
+    return parser.encodeResourceToString(result);
+  }
+
+  @Benchmark
+  public String largeHapi() {
+    return evaluateLarge("hapi");
+  }
+
+  @Benchmark
+  public String largeElement() {
+    return evaluateLarge("element");
+  }
+
+  private String evaluateLarge(String parser) {
+    IBaseParameters result = _evaluator.evaluateLarge(new ByteArrayInputStream(_json), false, parser, null,
+        _expression, false, null, false);
+    return _ctx.newJsonParser().encodeResourceToString(result);
+  }
+}
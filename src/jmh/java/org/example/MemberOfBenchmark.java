@@ -0,0 +1,100 @@
+package org.example;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.r4b.fhirpath.ExpressionNode;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4b.model.Base;
+import org.hl7.fhir.r4b.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * memberOf() on every Observation (status) and Patient (gender) in the ~5MB bundle, and on a
+ * code that is different for each Observation (its id), with the
+ * expansions cached (the ValueSetMembershipCache in front of the chain, as the WorkerContexts),
+ * with only the chain's own result cache, and with no caching at all (each code checked against
+ * a fresh in memory expansion).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemberOfBenchmark {
+
+  @Param({ "cached", "chain", "none" })
+  public String terminology;
+
+  private FHIRPathEngine _engine;
+  private Bundle _bundle;
+  private ExpressionNode _status;
+  private ExpressionNode _gender;
+  private ExpressionNode _ids;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    FhirContext ctx = FhirContext.forR4B();
+    DefaultProfileValidationSupport core = new DefaultProfileValidationSupport(ctx);
+    IValidationSupport inMemory = new InMemoryTerminologyServerValidationSupport(ctx);
+    IValidationSupport support;
+    switch (terminology) {
+      case "cached":
+        support = new ValidationSupportChain(new ValueSetMembershipCache(ctx, "r4b"), core, inMemory);
+        break;
+      case "chain":
+        support = new ValidationSupportChain(core, inMemory);
+        break;
+      default:
+        support = new ValidationSupportChain(ValidationSupportChain.CacheConfiguration.disabled(), core, inMemory);
+    }
+    _engine = new FHIRPathEngine(new HapiWorkerContext(ctx, support));
+    _engine.setHostServices(new FHIRPathTestEvaluationServices(ctx));
+    _bundle = (Bundle) ctx.newJsonParser().parseResource(BenchmarkData.json(BenchmarkData.BUNDLE));
+    _status = _engine.parse("entry.resource.ofType(Observation)"
+        + ".where(status.memberOf('http://hl7.org/fhir/ValueSet/observation-status')).count()");
+    _gender = _engine.parse("entry.resource.ofType(Patient)"
+        + ".where(gender.memberOf('http://hl7.org/fhir/ValueSet/administrative-gender')).count()");
+    _ids = _engine.parse("entry.resource.ofType(Observation)"
+        + ".where(id.toString().memberOf('http://hl7.org/fhir/ValueSet/observation-status')).count()");
+  }
+
+  private List<Base> evaluate(ExpressionNode expression) {
+    return _engine.evaluate(new FHIRPathRequestContext(null), _bundle, _bundle, _bundle, expression);
+  }
+
+  @Benchmark
+  public List<Base> status() {
+    return evaluate(_status);
+  }
+
+  @Benchmark
+  public List<Base> gender() {
+    return evaluate(_gender);
+  }
+
+  // a different code for every check
+  @Benchmark
+  public List<Base> distinctCodes() {
+    return evaluate(_ids);
+  }
+}
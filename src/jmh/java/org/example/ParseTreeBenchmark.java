@@ -0,0 +1,57 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The conversion of a parsed expression into the debug trees
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseTreeBenchmark {
+
+  @Param({ BenchmarkData.PATIENT, BenchmarkData.BUNDLE })
+  public String resource;
+
+  private org.hl7.fhir.r4b.fhirpath.ExpressionNode _parseTree;
+  private SimplifiedExpressionNode _simplifiedAST;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    FhirContext ctx = FhirContext.forR4B();
+    var engine = new org.hl7.fhir.r4b.fhirpath.FHIRPathEngine(
+        new HapiWorkerContext(ctx, new DefaultProfileValidationSupport(ctx)));
+    _parseTree = engine.parse(BenchmarkData.expression(resource));
+    _simplifiedAST = SimplifiedExpressionNode.From(_parseTree);
+  }
+
+  @Benchmark
+  public SimplifiedExpressionNode simplifiedExpressionNode() {
+    return SimplifiedExpressionNode.From(_parseTree);
+  }
+
+  @Benchmark
+  public JsonNode astMapper() {
+    return AstMapper.From(_simplifiedAST);
+  }
+}
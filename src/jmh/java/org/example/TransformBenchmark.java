@@ -0,0 +1,55 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.parser.IParser;
+
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * $transform of the QuestionnaireResponse from test-map.http (parse, transform and encode)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransformBenchmark {
+
+  private FhirContext _ctx;
+  private EvaluatorHAPI _evaluator;
+  private String _questionnaireResponse;
+  private String _map;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    _ctx = FhirContext.forR4B();
+    _evaluator = new EvaluatorHAPI(_ctx, new HapiWorkerContext(_ctx, new DefaultProfileValidationSupport(_ctx)));
+    _questionnaireResponse = BenchmarkData.readResource("questionnaire-response.json");
+    _map = BenchmarkData.readResource("intro-patient-map.map");
+  }
+
+  @Benchmark
+  public String transform() {
+    IParser parser = _ctx.newJsonParser();
+    IBaseResource input = parser.parseResource(_questionnaireResponse);
+    IBaseParameters result = _evaluator.transform(null, input, _map, null, null);
+    return parser.encodeResourceToString(result);
+  }
+}
@@ -0,0 +1,220 @@
+package org.example;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.exceptions.PathEngineException;
+import org.hl7.fhir.r4b.fhirpath.ExpressionNode.CollectionStatus;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathUtilityClasses.FunctionDetails;
+import org.hl7.fhir.r4b.fhirpath.TypeDetails;
+import org.hl7.fhir.r4b.model.Base;
+import org.hl7.fhir.r4b.model.DecimalType;
+import org.hl7.fhir.r4b.model.Integer64Type;
+import org.hl7.fhir.r4b.model.IntegerType;
+import org.hl7.fhir.r4b.model.PrimitiveType;
+
+/*
+ * sum(), min(), max() and avg() over the numbers in the input collection (the FHIRPath aggregate
+ * functions), in a single pass that only creates the result (where aggregate() builds a new
+ * collection for $total on every item).
+ * Integers are totalled as longs, decimals as BigDecimals, values with no value (just extensions)
+ * are skipped, anything that isn't a number is an error.
+ * An empty input gives 0 for sum() and empty for the others.
+ */
+public class AggregateFunctions {
+
+  public static class Sum extends Aggregate {
+    public Sum() {
+      super("sum", "The sum of the numbers in the input collection");
+    }
+
+    @Override
+    public List<Base> execute(FHIRPathEngine engine, Object appContext, List<Base> focus,
+        List<List<Base>> parameters) {
+      Total total = total("sum", focus);
+      return result(total.decimal != null ? new DecimalType(total.decimal) : integer(total.integer));
+    }
+  }
+
+  public static class Avg extends Aggregate {
+    public Avg() {
+      super("avg", "The average of the numbers in the input collection (as a decimal)");
+    }
+
+    @Override
+    public List<Base> execute(FHIRPathEngine engine, Object appContext, List<Base> focus,
+        List<List<Base>> parameters) {
+      Total total = total("avg", focus);
+      if (total.count == 0)
+        return new ArrayList<>();
+      BigDecimal sum = total.decimal != null ? total.decimal : BigDecimal.valueOf(total.integer);
+      return result(new DecimalType(sum.divide(BigDecimal.valueOf(total.count), MathContext.DECIMAL128)));
+    }
+
+    @Override
+    public TypeDetails check(FHIRPathEngine engine, Object appContext, TypeDetails focus,
+        List<TypeDetails> parameters) {
+      return new TypeDetails(CollectionStatus.SINGLETON, TypeDetails.FP_Decimal);
+    }
+  }
+
+  public static class Min extends Aggregate {
+    public Min() {
+      super("min", "The smallest of the numbers in the input collection");
+    }
+
+    @Override
+    public List<Base> execute(FHIRPathEngine engine, Object appContext, List<Base> focus,
+        List<List<Base>> parameters) {
+      return extreme("min", focus, -1);
+    }
+  }
+
+  public static class Max extends Aggregate {
+    public Max() {
+      super("max", "The largest of the numbers in the input collection");
+    }
+
+    @Override
+    public List<Base> execute(FHIRPathEngine engine, Object appContext, List<Base> focus,
+        List<List<Base>> parameters) {
+      return extreme("max", focus, 1);
+    }
+  }
+
+  abstract static class Aggregate implements FHIRPathFunction {
+    Aggregate(String name, String description) {
+      _name = name;
+      _details = new FunctionDetails(description, 0, 0);
+    }
+
+    private final String _name;
+    private final FunctionDetails _details;
+
+    @Override
+    public String getName() {
+      return _name;
+    }
+
+    @Override
+    public FunctionDetails getDetails() {
+      return _details;
+    }
+
+    // an integer if the input can only be integers
+    @Override
+    public TypeDetails check(FHIRPathEngine engine, Object appContext, TypeDetails focus,
+        List<TypeDetails> parameters) {
+      boolean decimal = focus.hasType("decimal") || focus.hasType(TypeDetails.FP_Decimal);
+      return new TypeDetails(CollectionStatus.SINGLETON, decimal ? TypeDetails.FP_Decimal : TypeDetails.FP_Integer);
+    }
+  }
+
+  private static class Total {
+    long integer;
+    BigDecimal decimal;
+    int count;
+  }
+
+  // (stays in longs until the first decimal)
+  private static Total total(String function, List<Base> focus) {
+    Total total = new Total();
+    for (Base value : focus) {
+      if (!hasNumber(function, value))
+        continue;
+      total.count++;
+      if (total.decimal == null && isInteger(value)) {
+        try {
+          total.integer = Math.addExact(total.integer, longValue(value));
+        } catch (ArithmeticException e) {
+          throw new PathEngineException(function + "() overflowed the integer range");
+        }
+      } else {
+        if (total.decimal == null)
+          total.decimal = BigDecimal.valueOf(total.integer);
+        total.decimal = total.decimal.add(decimalValue(value));
+      }
+    }
+    return total;
+  }
+
+  // the smallest (direction -1) or largest (1) item itself
+  private static List<Base> extreme(String function, List<Base> focus, int direction) {
+    Base best = null;
+    long bestInteger = 0;
+    BigDecimal bestDecimal = null;
+    for (Base value : focus) {
+      if (!hasNumber(function, value))
+        continue;
+      boolean integer = isInteger(value);
+      if (best != null) {
+        int comparison = integer && bestDecimal == null
+            ? Long.compare(longValue(value), bestInteger)
+            : decimalValue(value).compareTo(bestDecimal != null ? bestDecimal : BigDecimal.valueOf(bestInteger));
+        if (Integer.signum(comparison) != direction)
+          continue;
+      }
+      best = value;
+      if (integer) {
+        bestInteger = longValue(value);
+        bestDecimal = null;
+      } else {
+        bestDecimal = decimalValue(value);
+      }
+    }
+    return best != null ? result(best) : new ArrayList<>();
+  }
+
+  private static List<Base> result(Base value) {
+    List<Base> result = new ArrayList<>(1);
+    result.add(value);
+    return result;
+  }
+
+  private static Base integer(long value) {
+    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+      return new IntegerType((int) value);
+    return new Integer64Type(value);
+  }
+
+  // false for a number with no value, an error for anything that isn't a number
+  private static boolean hasNumber(String function, Base value) {
+    if (!isInteger(value) && !"decimal".equals(value.fhirType()))
+      throw new PathEngineException(function + "() can only be used on numbers, found " + value.fhirType());
+    if (value instanceof PrimitiveType<?>)
+      return ((PrimitiveType<?>) value).getValue() != null;
+    return value.primitiveValue() != null;
+  }
+
+  private static boolean isInteger(Base value) {
+    switch (value.fhirType()) {
+      case "integer":
+      case "unsignedInt":
+      case "positiveInt":
+      case "integer64":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // (the model types hold their value, elements from the element model only have the string)
+  private static long longValue(Base value) {
+    if (value instanceof IntegerType)
+      return ((IntegerType) value).getValue();
+    if (value instanceof Integer64Type)
+      return ((Integer64Type) value).getValue();
+    return Long.parseLong(value.primitiveValue());
+  }
+
+  private static BigDecimal decimalValue(Base value) {
+    if (value instanceof DecimalType)
+      return ((DecimalType) value).getValue();
+    if (isInteger(value))
+      return BigDecimal.valueOf(longValue(value));
+    return new BigDecimal(value.primitiveValue());
+  }
+}
@@ -31,6 +31,15 @@ package org.example;
 
 
 
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4b.context.IWorkerContext;
 import org.hl7.fhir.r4b.model.Coding;
@@ -40,8 +49,25 @@ import org.hl7.fhir.r4b.model.ConceptMap.SourceElementComponent;
 import org.hl7.fhir.r4b.model.ConceptMap.TargetElementComponent;
 import org.hl7.fhir.utilities.CanonicalPair;
 
+/*
+ * Each ConceptMap is compiled once into lookup tables keyed by (source system, code) and by
+ * just the code, so translating is a hash lookup rather than a scan of the groups and elements.
+ * The compiled maps are cached by url and version, shared by all the engines (the same map compiles
+ * the same in every worker context).
+ */
 public class ConceptMapEngine {
 
+  static final long DEFAULT_MAX_SIZE = Long.getLong("fhirpath.conceptMapCache.maxSize", 200);
+
+  private static final Cache<String, CompiledConceptMap> compiledMaps = Caffeine.newBuilder()
+      .maximumSize(DEFAULT_MAX_SIZE)
+      .recordStats()
+      .build();
+
+  static {
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, compiledMaps, "fhirpath.conceptmaps");
+  }
+
   private IWorkerContext context;
 
   public ConceptMapEngine(IWorkerContext context) {
@@ -52,46 +78,69 @@ public class ConceptMapEngine {
     ConceptMap cm = context.fetchResource(ConceptMap.class, url);
     if (cm == null)
       throw new FHIRException("Unable to find ConceptMap '"+url+"'");
+    return translate(source, cm);
+  }
+
+  public Coding translate(Coding source, ConceptMap cm) throws FHIRException {
+    CompiledConceptMap compiled = compiledMaps.get(cm.getUrl() + "|" + cm.getVersion(), (key) -> compile(cm));
+    Translation translation;
     if (source.hasSystem()) 
-      return translateBySystem(cm, source.getSystem(), source.getCode());
+      translation = compiled.bySystem.get(new SystemCode(source.getSystem(), source.getCode()));
     else
-      return translateByJustCode(cm, source.getCode());
+      translation = compiled.byCode.get(source.getCode());
+    if (translation == null)
+      return null;
+    if (translation.error != null)
+      throw new FHIRException(translation.error);
+    // (the result ends up in the transform output, so don't hand out the cached instance)
+    return translation.target != null ? translation.target.copy() : null;
   }
 
-  private Coding translateByJustCode(ConceptMap cm, String code) throws FHIRException {
-    SourceElementComponent ct = null;
-    ConceptMapGroupComponent cg = null;
+  private record SystemCode(String system, String code) {
+  }
+
+  // the outcome of translating a source code: the target (null if there is no usable target), or an error
+  private record Translation(Coding target, String error) {
+  }
+
+  private static class CompiledConceptMap {
+    final Map<SystemCode, Translation> bySystem = new HashMap<>();
+    final Map<String, Translation> byCode = new HashMap<>();
+  }
+
+  private CompiledConceptMap compile(ConceptMap cm) {
+    CompiledConceptMap compiled = new CompiledConceptMap();
     for (ConceptMapGroupComponent g : cm.getGroup()) {
       for (SourceElementComponent e : g.getElement()) {
-        if (code.equals(e.getCode())) {
-          if (e != null)
-            throw new FHIRException("Unable to process translate "+code+" because multiple candidate matches were found in concept map "+cm.getUrl());
-          ct = e;
-          cg = g;
-        }
+        if (!e.hasCode())
+          continue;
+        String code = e.getCode();
+        Translation translation = translateElement(cm, g, e);
+        Translation ambiguous = new Translation(null, "Unable to process translate "+code+" because multiple candidate matches were found in concept map "+cm.getUrl());
+        compiled.byCode.merge(code, translation, (existing, added) -> ambiguous);
+        if (g.hasSource())
+          compiled.bySystem.merge(new SystemCode(g.getSource(), code), translation, (existing, added) -> ambiguous);
       }
     }
-    if (ct == null)
-      return null;
+    return compiled;
+  }
+
+  private Translation translateElement(ConceptMap cm, ConceptMapGroupComponent cg, SourceElementComponent ct) {
     TargetElementComponent tt = null;
     for (TargetElementComponent t : ct.getTarget()) {
       if (!t.hasDependsOn() && !t.hasProduct() && isOkRelationship(t.getEquivalence())) {
         if (tt != null)
-          throw new FHIRException("Unable to process translate "+code+" because multiple targets were found in concept map "+cm.getUrl());
+          return new Translation(null, "Unable to process translate "+ct.getCode()+" because multiple targets were found in concept map "+cm.getUrl());
         tt = t;       
       }
     }
     if (tt == null)
-      return null;
+      return new Translation(null, null);
     CanonicalPair cp = new CanonicalPair(cg.getTarget());
-    return new Coding().setSystem(cp.getUrl()).setVersion(cp.getVersion()).setCode(tt.getCode()).setDisplay(tt.getDisplay());      
+    return new Translation(new Coding().setSystem(cp.getUrl()).setVersion(cp.getVersion()).setCode(tt.getCode()).setDisplay(tt.getDisplay()), null);      
   }
 
   private boolean isOkRelationship(ConceptMap.ConceptMapEquivalence relationship) {
     return relationship != null && relationship != ConceptMap.ConceptMapEquivalence.DISJOINT;
   }
-
-  private Coding translateBySystem(ConceptMap cm, String system, String code) {
-    throw new Error("Not done yet");
-  }
-}
\ No newline at end of file
+}
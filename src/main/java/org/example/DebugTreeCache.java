@@ -0,0 +1,63 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/*
+ * The json debug trees (parseDebugTree and parseDebugTreeJava) for an expression only depend
+ * on the expression text, so are generated once with a shared writer and then cached.
+ */
+public class DebugTreeCache {
+
+  public record DebugTrees(String parseDebugTree, String parseDebugTreeJava) {
+  }
+
+  // ObjectWriters are immutable and thread safe (unlike configuring an ObjectMapper)
+  static final ObjectWriter _writer;
+  static {
+    ObjectMapper objectMapper = new ObjectMapper();
+    objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+    objectMapper.setSerializationInclusion(Include.NON_NULL);
+    _writer = objectMapper.writer();
+  }
+
+  public DebugTreeCache(String fhirVersion) {
+    _cache = Caffeine.newBuilder()
+        .maximumSize(ExpressionCache.DEFAULT_MAX_SIZE)
+        .recordStats()
+        .build();
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, _cache, "fhirpath.debugtrees",
+        Tags.of("fhirVersion", fhirVersion));
+  }
+
+  private final Cache<String, DebugTrees> _cache;
+
+  public DebugTrees get(String expression, Supplier<SimplifiedExpressionNode> simplifiedAST) throws IOException {
+    try {
+      return _cache.get(expression, (key) -> {
+        SimplifiedExpressionNode ast = simplifiedAST.get();
+        JsonNode nodeParse = AstMapper.From(ast);
+        try {
+          return new DebugTrees(_writer.writeValueAsString(nodeParse), _writer.writeValueAsString(ast));
+        } catch (JsonProcessingException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package org.example;
+
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/*
+ * Holds long-lived engine instances so they are not re-created on every request.
+ * The FHIRPath engines keep some internal state while evaluating (so can't be used
+ * by 2 threads at once), hence one engine is kept per thread that uses the pool.
+ * Anything specific to a request must be passed through the appContext, not set on the engine.
+ */
+public class EnginePool<T> {
+
+  public EnginePool(String name, Supplier<T> factory) {
+    _created = Counter.builder("fhirpath.engines.created")
+        .tag("engine", name)
+        .register(Metrics.globalRegistry);
+    _engines = ThreadLocal.withInitial(() -> {
+      _created.increment();
+      return factory.get();
+    });
+  }
+
+  private final Counter _created;
+  private final ThreadLocal<T> _engines;
+
+  public T get() {
+    return _engines.get();
+  }
+}
@@ -6,27 +6,106 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
 import ca.uhn.fhir.util.ParametersUtil;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 
 import org.hl7.fhir.r4b.model.Parameters;
 import org.hl7.fhir.r4b.model.StringType;
 
 import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
+/*
+ * Evaluates the expression as CQL on a remote server's $cql operation.
+ * The remote calls use one pooled http client (with connect/read timeouts), with a client per
+ * server url, and run on the `cql` isolation pool, so a slow server only holds up those threads.
+ * $fhirpath-cql-async doesn't hold a servlet thread at all while waiting on the remote server.
+ * Either way a request waits at most twice the http timeout (connecting and then reading).
+ * Responses are cached by (server, expression, resource content) for a short time
+ * -Dfhirpath.cql.cacheSize=0 to disable
+ */
 public class EvaluatorCQLFacade {
 
+  static final String DEFAULT_SERVER = "https://cloud.alphora.com/sandbox/r4/cds/fhir";
+  static final int DEFAULT_TIMEOUT_MS = Integer.getInteger("fhirpath.cql.timeoutMs", 20000);
+  static final int MAX_CONNECTIONS = Integer.getInteger("fhirpath.cql.maxConnections", 20);
+  static final long CACHE_SIZE = Long.getLong("fhirpath.cql.cacheSize", 500);
+  static final long CACHE_TTL_SECONDS = Long.getLong("fhirpath.cql.cacheTtlSeconds", 300);
+
+  static final IsolationPool _sharedPool = new IsolationPool("cql", MAX_CONNECTIONS,
+      Integer.getInteger("fhirpath.cql.queueSize", 100), DEFAULT_TIMEOUT_MS * 2L);
+
+  // the remote server's $cql responses by server|expression|resource hash
+  static final Cache<String, Parameters> _responses = Caffeine.newBuilder()
+      .maximumSize(CACHE_SIZE)
+      .expireAfterWrite(Duration.ofSeconds(CACHE_TTL_SECONDS))
+      .recordStats()
+      .build();
+
+  static {
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, _responses, "fhirpath.cql.responses");
+  }
+
   public EvaluatorCQLFacade(FhirContext context) {
+    this(context, DEFAULT_TIMEOUT_MS);
+  }
+
+  public EvaluatorCQLFacade(FhirContext context, int timeoutMillis) {
+    this(context, timeoutMillis, _sharedPool);
+  }
+
+  EvaluatorCQLFacade(FhirContext context, int timeoutMillis, IsolationPool pool) {
     _ctx = context;
+    _pool = pool;
+    _timeoutMillis = timeoutMillis * 2L;
+    // the clients use their context's factory for each request, so they get a context of their own
+    // (to not change the settings of the shared context's clients)
+    _clientContext = FhirContext.forVersion(context.getVersion().getVersion());
+    ApacheRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(_clientContext);
+    clientFactory.setConnectTimeout(Math.min(timeoutMillis, 5000));
+    clientFactory.setConnectionRequestTimeout(timeoutMillis);
+    clientFactory.setSocketTimeout(timeoutMillis);
+    clientFactory.setPoolMaxTotal(MAX_CONNECTIONS);
+    clientFactory.setPoolMaxPerRoute(MAX_CONNECTIONS);
+    clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+    _clientContext.setRestfulClientFactory(clientFactory);
+    _clients = Caffeine.newBuilder().maximumSize(50).build();
   }
 
   private FhirContext _ctx;
+  private final IsolationPool _pool;
+  private final long _timeoutMillis;
+  private final FhirContext _clientContext;
+  private final Cache<String, IGenericClient> _clients;
 
   @Operation(name = "fhirpath-cql", idempotent = true, returnParameters = {
       @OperationParam(name = "resource", min = 1),
@@ -37,7 +116,109 @@ public class EvaluatorCQLFacade {
       @OperationParam(name = "expression") String expression,
       @OperationParam(name = "resource", min = 1) IBaseResource resource,
       @OperationParam(name = "cql-server") String cqlServerUrl) {
+    return _pool.call(() -> evaluateCQL(expression, resource, cqlServerUrl), _timeoutMillis);
+  }
+
+  /*
+   * The same as $fhirpath-cql, but the servlet thread is released while the remote server is
+   * called, the response is written when it completes
+   */
+  @Operation(name = "fhirpath-cql-async", idempotent = true, manualResponse = true)
+  public void evaluateAsync(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse,
+
+      @OperationParam(name = "expression") String expression,
+      @OperationParam(name = "resource", min = 1) IBaseResource resource,
+      @OperationParam(name = "cql-server") String cqlServerUrl) throws IOException {
+    evaluateAsync(theServletRequest.startAsync(), theServletResponse, expression, resource, cqlServerUrl);
+  }
+
+  void evaluateAsync(AsyncContext async, HttpServletResponse theServletResponse, String expression,
+      IBaseResource resource, String cqlServerUrl) throws IOException {
+    async.setTimeout(_timeoutMillis);
+    AsyncResponse response = new AsyncResponse(async, theServletResponse);
+    async.addListener(response);
+    try {
+      response.task = _pool.submit(() -> {
+        try {
+          response.write(200, evaluateCQL(expression, resource, cqlServerUrl));
+        } catch (BaseServerResponseException e) {
+          response.write(e.getStatusCode(), outcome(e.getMessage()));
+        } catch (Exception e) {
+          response.write(500, outcome(e.getMessage()));
+        }
+        return null;
+      });
+    } catch (BaseServerResponseException e) {
+      // too busy
+      response.write(e.getStatusCode(), outcome(e.getMessage()));
+    }
+  }
+
+  /*
+   * The response of an async request, written (and the request completed) once only, by the
+   * pool's thread when the work finishes or by the container when the request times out
+   * (which cancels the work)
+   */
+  private class AsyncResponse implements AsyncListener {
+    AsyncResponse(AsyncContext async, HttpServletResponse response) {
+      _async = async;
+      _response = response;
+    }
 
+    private final AsyncContext _async;
+    private final HttpServletResponse _response;
+    private final AtomicBoolean _written = new AtomicBoolean();
+    volatile Future<Object> task;
+
+    void write(int status, IBaseResource resource) throws IOException {
+      if (!_written.compareAndSet(false, true))
+        return;
+      try {
+        writeResponse(_response, status, resource);
+      } finally {
+        _async.complete();
+      }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      Future<Object> running = task;
+      if (running != null)
+        _pool.timeout(running, _timeoutMillis);
+      write(503, outcome("The cql engine did not complete the request within " + _timeoutMillis + "ms"));
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      Future<Object> running = task;
+      if (running != null)
+        running.cancel(true);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+  }
+
+  private void writeResponse(HttpServletResponse response, int status, IBaseResource resource) throws IOException {
+    response.setStatus(status);
+    response.setContentType("application/fhir+json");
+    response.setCharacterEncoding("UTF-8");
+    _ctx.newJsonParser().encodeResourceToWriter(resource, response.getWriter());
+    response.getWriter().flush();
+  }
+
+  private IBaseOperationOutcome outcome(String message) {
+    IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(_ctx);
+    OperationOutcomeUtil.addIssue(_ctx, outcome, "error", message, null, "exception");
+    return outcome;
+  }
+
+  IBaseParameters evaluateCQL(String expression, IBaseResource resource, String cqlServerUrl) {
     IBaseParameters responseParameters = ParametersUtil.newInstance(_ctx);
     responseParameters.setId("fhirpath");
 
@@ -71,16 +252,11 @@ public class EvaluatorCQLFacade {
       pResource.setResource(dataBundle);
 
       // call out to the Facade server
-      String cqlServer = "https://cloud.alphora.com/sandbox/r4/cds/fhir";
+      String cqlServer = DEFAULT_SERVER;
       if (isNotBlank(cqlServerUrl))
         cqlServer = cqlServerUrl;
-      var cqlClient = _ctx.newRestfulGenericClient(cqlServer);
-      org.hl7.fhir.r4b.model.Parameters cqlResponse = cqlClient
-          .operation()
-          .onServer()
-          .named("$cql")
-          .withParameters(cqlParams)
-          .execute();
+      org.hl7.fhir.r4b.model.Parameters cqlResponse = callServer(cqlServer, cqlParams,
+          cqlServer + "|" + expression + "|" + hash(parser.encodeResourceToString(resource)));
 
       Parameters.ParametersParameterComponent resultPart = (Parameters.ParametersParameterComponent) ParametersUtil
           .addParameterToParameters(_ctx, responseParameters,
@@ -125,4 +301,29 @@ public class EvaluatorCQLFacade {
     }
     return responseParameters;
   }
+
+  private static String hash(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Parameters callServer(String cqlServer, Parameters cqlParams, String cacheKey) {
+    Parameters cached = CACHE_SIZE > 0 ? _responses.getIfPresent(cacheKey) : null;
+    if (cached != null)
+      return cached.copy();
+    IGenericClient cqlClient = _clients.get(cqlServer, (url) -> _clientContext.newRestfulGenericClient(url));
+    Parameters cqlResponse = cqlClient
+        .operation()
+        .onServer()
+        .named("$cql")
+        .withParameters(cqlParams)
+        .execute();
+    if (CACHE_SIZE > 0)
+      _responses.put(cacheKey, cqlResponse.copy());
+    return cqlResponse;
+  }
 }
@@ -0,0 +1,247 @@
+package org.example;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.ParametersUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.r4b.model.BooleanType;
+import org.hl7.fhir.r4b.model.Extension;
+import org.hl7.fhir.r4b.model.Parameters;
+import org.hl7.fhir.r4b.model.StringType;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/*
+ * $fhirpath-compare runs the same expression over the same resource on all of the registered
+ * engines at once, returning each engine's results side by side (with how long it took), and a
+ * summary of where they differ from the first engine that succeeded.
+ * The engines run concurrently (on the compare pool) so the whole request takes as long as the
+ * slowest engine, an engine that hasn't finished by the timeout is reported as failed.
+ */
+public class EvaluatorCompare {
+
+  public interface Engine {
+    // evaluate the expression, returning the $fhirpath style response (with the results in R4B form)
+    Parameters evaluate(IBaseResource resource, String contextExpression, String expression,
+        Parameters.ParametersParameterComponent variables) throws Exception;
+  }
+
+  static final IsolationPool _pool = new IsolationPool("compare",
+      Runtime.getRuntime().availableProcessors() * 2,
+      Integer.getInteger("fhirpath.compare.queueSize", 200),
+      Long.getLong("fhirpath.compare.timeoutMs", 15000));
+
+  public EvaluatorCompare(FhirContext context) {
+    _ctx = context;
+  }
+
+  private final FhirContext _ctx;
+  private final Map<String, Engine> _engines = new LinkedHashMap<>();
+
+  public EvaluatorCompare addEngine(String name, Engine engine) {
+    _engines.put(name, engine);
+    return this;
+  }
+
+  private static class EngineResult {
+    String name;
+    Parameters response;
+    String error;
+    long nanos;
+  }
+
+  @Operation(name = "fhirpath-compare", idempotent = true, returnParameters = {
+      @OperationParam(name = "engine", min = 1),
+      @OperationParam(name = "summary", min = 1)
+  })
+  public IBaseParameters compare(HttpServletRequest theServletRequest,
+
+      @OperationParam(name = "resource", min = 1) IBaseResource resource,
+      @OperationParam(name = "context") String contextExpression,
+      @OperationParam(name = "expression") String expression,
+      @OperationParam(name = "variables") Parameters.ParametersParameterComponent variables,
+      @OperationParam(name = "engines") String engineNames) {
+
+    if (!isNotBlank(expression))
+      throw new InvalidRequestException("No expression provided to compare");
+    List<String> selected = new ArrayList<>(_engines.keySet());
+    if (isNotBlank(engineNames)) {
+      selected = Arrays.stream(engineNames.split(",")).map(String::trim).toList();
+      for (String name : selected) {
+        if (!_engines.containsKey(name))
+          throw new InvalidRequestException("Unknown engine '" + name + "', available engines are " + _engines.keySet());
+      }
+    }
+
+    // start them all, then collect the results
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(_pool.getTimeoutMillis());
+    List<EngineResult> results = new ArrayList<>();
+    List<Future<EngineResult>> futures = new ArrayList<>();
+    for (String name : selected) {
+      EngineResult result = new EngineResult();
+      result.name = name;
+      results.add(result);
+      Engine engine = _engines.get(name);
+      try {
+        futures.add(_pool.submit(() -> {
+          long engineStart = System.nanoTime();
+          try {
+            result.response = engine.evaluate(resource, contextExpression, expression, variables);
+          } catch (Exception e) {
+            result.error = String.valueOf(e.getMessage());
+          }
+          result.nanos = System.nanoTime() - engineStart;
+          return result;
+        }));
+      } catch (RuntimeException e) {
+        result.error = e.getMessage();
+        futures.add(null);
+      }
+    }
+    for (int i = 0; i < futures.size(); i++) {
+      if (futures.get(i) == null)
+        continue;
+      try {
+        _pool.get(futures.get(i), deadline);
+      } catch (RuntimeException e) {
+        // timed out (the late result is left to the pool thread)
+        EngineResult result = new EngineResult();
+        result.name = results.get(i).name;
+        result.error = e.getMessage();
+        result.nanos = System.nanoTime() - start;
+        results.set(i, result);
+      }
+    }
+    long wallNanos = System.nanoTime() - start;
+    PhaseTimings timings = new PhaseTimings("compare", "fhirpath-compare");
+    for (EngineResult result : results)
+      timings.recordNanos(result.name, result.nanos);
+    timings.complete(_ctx, null);
+
+    IBaseParameters responseParameters = ParametersUtil.newInstance(_ctx);
+    responseParameters.setId("fhirpath-compare");
+    Parameters.ParametersParameterComponent paramsPart = (Parameters.ParametersParameterComponent) ParametersUtil
+        .addParameterToParameters(_ctx, responseParameters, "parameters");
+    ParametersUtil.addPartString(_ctx, paramsPart, "evaluator", "compare");
+    if (contextExpression != null)
+      ParametersUtil.addPartString(_ctx, paramsPart, "context", contextExpression);
+    ParametersUtil.addPartString(_ctx, paramsPart, "expression", expression);
+    ParametersUtil.addPartResource(_ctx, paramsPart, "resource", resource);
+    if (variables != null)
+      paramsPart.addPart(variables);
+
+    for (EngineResult result : results) {
+      Parameters.ParametersParameterComponent enginePart = (Parameters.ParametersParameterComponent) ParametersUtil
+          .addParameterToParameters(_ctx, responseParameters, "engine");
+      enginePart.setValue(new StringType(result.name));
+      ParametersUtil.addPartDecimal(_ctx, enginePart, "latency", result.nanos / 1_000_000.0);
+      if (result.error != null) {
+        ParametersUtil.addPartString(_ctx, enginePart, "error", result.error);
+        continue;
+      }
+      for (Parameters.ParametersParameterComponent p : result.response.getParameter()) {
+        if ("result".equals(p.getName()))
+          enginePart.addPart(p.copy());
+      }
+    }
+
+    Parameters.ParametersParameterComponent summary = (Parameters.ParametersParameterComponent) ParametersUtil
+        .addParameterToParameters(_ctx, responseParameters, "summary");
+    summarise(summary, results);
+    ParametersUtil.addPartDecimal(_ctx, summary, "wallTime", wallNanos / 1_000_000.0);
+    return responseParameters;
+  }
+
+  private void summarise(Parameters.ParametersParameterComponent summary, List<EngineResult> results) {
+    EngineResult reference = null;
+    boolean agree = true;
+    List<String> differences = new ArrayList<>();
+    List<String> failures = new ArrayList<>();
+    for (EngineResult result : results) {
+      if (result.error != null) {
+        failures.add(result.name + ": " + result.error);
+        continue;
+      }
+      if (reference == null) {
+        reference = result;
+        continue;
+      }
+      String difference = difference(valuesOf(reference.response), valuesOf(result.response), reference.name);
+      if (difference != null) {
+        agree = false;
+        differences.add(result.name + " " + difference);
+      }
+    }
+    summary.addPart().setName("agree").setValue(new BooleanType(reference != null && agree));
+    if (reference != null)
+      summary.addPart().setName("reference").setValue(new StringType(reference.name));
+    for (String difference : differences)
+      summary.addPart().setName("difference").setValue(new StringType(difference));
+    for (String failure : failures)
+      summary.addPart().setName("failed").setValue(new StringType(failure));
+  }
+
+  // move a resource to another FHIR version (for the engines that work on another version)
+  @SuppressWarnings("unchecked")
+  static <T extends IBaseResource> T convert(IBaseResource resource, FhirContext to) {
+    FhirContext from = FhirContext.forCached(resource.getStructureFhirVersionEnum());
+    return (T) to.newJsonParser().parseResource(from.newJsonParser().encodeResourceToString(resource));
+  }
+
+  // the values of each result (one list per context node), the type names vary between the engines
+  // so just the values are compared
+  static List<List<String>> valuesOf(Parameters response) {
+    List<List<String>> values = new ArrayList<>();
+    for (Parameters.ParametersParameterComponent result : response.getParameter()) {
+      if (!"result".equals(result.getName()))
+        continue;
+      List<String> nodeValues = new ArrayList<>();
+      for (Parameters.ParametersParameterComponent part : result.getPart()) {
+        if ("trace".equals(part.getName()))
+          continue;
+        if (part.hasResource()) {
+          nodeValues.add(part.getResource().fhirType() + "/" + part.getResource().getIdElement().getIdPart());
+        } else if (part.hasValue()) {
+          nodeValues.add(part.getValue().primitiveValue());
+        } else {
+          Extension json = part.getExtensionByUrl("http://fhir.forms-lab.com/StructureDefinition/json-value");
+          nodeValues.add(json != null ? json.getValue().primitiveValue() : part.getName());
+        }
+      }
+      values.add(nodeValues);
+    }
+    return values;
+  }
+
+  // describe the first difference (or null if they're the same)
+  static String difference(List<List<String>> expected, List<List<String>> actual, String referenceName) {
+    if (expected.size() != actual.size())
+      return "has " + actual.size() + " results (" + referenceName + " has " + expected.size() + ")";
+    for (int i = 0; i < expected.size(); i++) {
+      List<String> e = expected.get(i);
+      List<String> a = actual.get(i);
+      if (e.size() != a.size())
+        return "result[" + i + "] has " + a.size() + " values (" + referenceName + " has " + e.size() + ")";
+      for (int j = 0; j < e.size(); j++) {
+        if (!String.valueOf(e.get(j)).equals(String.valueOf(a.get(j))))
+          return "result[" + i + "][" + j + "] is '" + a.get(j) + "' (" + referenceName + " has '" + e.get(j) + "')";
+      }
+    }
+    return null;
+  }
+}
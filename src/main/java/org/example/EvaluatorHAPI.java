@@ -4,44 +4,57 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
-import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.i18n.Msg;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.util.ParametersUtil;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 import org.hl7.fhir.r4b.elementmodel.Manager;
+import org.hl7.fhir.r4b.formats.IParser.OutputStyle;
 import org.hl7.fhir.r4b.context.IWorkerContext;
 import org.hl7.fhir.r4b.model.Base;
+import org.hl7.fhir.r4b.model.BooleanType;
 import org.hl7.fhir.r4b.model.Coding;
 import org.hl7.fhir.r4b.model.Parameters;
 import org.hl7.fhir.r4b.model.StructureMap;
 import org.hl7.fhir.r4b.model.StructureDefinition;
 import org.hl7.fhir.r4b.model.StringType;
-import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine;
-import org.hl7.fhir.r4b.fhirpath.TypeDetails;
-import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine.IEvaluationContext;
 import org.hl7.fhir.r4b.utils.structuremap.StructureMapUtilities;
 import org.hl7.fhir.r4b.utils.structuremap.ITransformerServices;
-import org.hl7.fhir.r4b.fhirpath.FHIRPathUtilityClasses.FunctionDetails;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
 
-import org.apache.commons.lang3.NotImplementedException;
 import org.hl7.fhir.exceptions.FHIRException;
-import org.hl7.fhir.exceptions.PathEngineException;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -51,10 +64,31 @@ public class EvaluatorHAPI {
   public EvaluatorHAPI(FhirContext context, IWorkerContext workerContext) {
     _ctx = context;
     _workerContext = workerContext;
+    _services = new FHIRPathTestEvaluationServices(_ctx);
+    _enginePool = new EnginePool<>("r4b", () -> {
+      org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine = new org.hl7.fhir.r4b.fhirpath.FHIRPathEngine(_workerContext);
+      engine.setHostServices(_services);
+      return engine;
+    });
+    _transformServices = new TransformSupportServices(_workerContext);
+    _mapUtilitiesPool = new EnginePool<>("structuremap-r4b",
+        () -> new StructureMapUtilities(_workerContext, _transformServices));
   }
 
   private FhirContext _ctx;
   private IWorkerContext _workerContext;
+  private FHIRPathTestEvaluationServices _services;
+  private EnginePool<org.hl7.fhir.r4b.fhirpath.FHIRPathEngine> _enginePool;
+  private TransformSupportServices _transformServices;
+  private EnginePool<StructureMapUtilities> _mapUtilitiesPool;
+
+  // parsed expression trees are shared by all instances of this evaluator
+  static final ExpressionCache<org.hl7.fhir.r4b.fhirpath.ExpressionNode> _expressionCache = new ExpressionCache<>("r4b");
+  static final DebugTreeCache _debugTreeCache = new DebugTreeCache("r4b");
+  static final StructureMapCache _structureMapCache = new StructureMapCache("r4b");
+
+  // bounded pool used when evaluating the context nodes in parallel
+  static final ForkJoinPool _contextNodePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
   @Operation(name = "fhirpath", idempotent = true, returnParameters = {
       @OperationParam(name = "resource", min = 1),
@@ -65,136 +99,615 @@ public class EvaluatorHAPI {
       @OperationParam(name = "resource", min = 1) IBaseResource resource,
       @OperationParam(name = "context") String contextExpression,
       @OperationParam(name = "expression") String expression,
-      @OperationParam(name = "variables") Parameters.ParametersParameterComponent variables) {
+      @OperationParam(name = "variables") Parameters.ParametersParameterComponent variables,
+      @OperationParam(name = "debug-tree") BooleanType debugTree,
+      @OperationParam(name = "parallel") BooleanType parallel,
+      @OperationParam(name = "compact") BooleanType compact,
+      @OperationParam(name = "trace") BooleanType trace,
+      @OperationParam(name = "result-format") String resultFormat,
+      @OperationParam(name = "timing") BooleanType timing) {
 
     IBaseParameters responseParameters = ParametersUtil.newInstance(_ctx);
     responseParameters.setId("fhirpath");
 
     if (isNotBlank(expression)) {
-      // echo the parameters used
-      Parameters.ParametersParameterComponent paramsPart = (Parameters.ParametersParameterComponent) ParametersUtil
-          .addParameterToParameters(_ctx, responseParameters,
-              "parameters");
-      ParametersUtil.addPartString(_ctx, paramsPart, "evaluator", FhirService.hapiVersion + " (r4b)");
-      if (contextExpression != null)
-        ParametersUtil.addPartString(_ctx, paramsPart, "context", contextExpression);
-      ParametersUtil.addPartString(_ctx, paramsPart, "expression", expression);
-      ParametersUtil.addPartResource(_ctx, paramsPart, "resource", resource);
-
-      IFhirPath fhirPath = _ctx.newFhirPath();
-      IParser parser = _ctx.newJsonParser();
+      PhaseTimings timings = new PhaseTimings("hapi-r4b", "fhirpath");
+      // echo the parameters used (the compact mode only returns the results)
+      Parameters.ParametersParameterComponent paramsPart = null;
+      if (compact == null || !compact.booleanValue()) {
+        paramsPart = (Parameters.ParametersParameterComponent) ParametersUtil
+            .addParameterToParameters(_ctx, responseParameters,
+                "parameters");
+        ParametersUtil.addPartString(_ctx, paramsPart, "evaluator", FhirService.hapiVersion + " (r4b)");
+        if (contextExpression != null)
+          ParametersUtil.addPartString(_ctx, paramsPart, "context", contextExpression);
+        ParametersUtil.addPartString(_ctx, paramsPart, "expression", expression);
+        ParametersUtil.addPartResource(_ctx, paramsPart, "resource", resource);
+      }
 
-      org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine = new org.hl7.fhir.r4b.fhirpath.FHIRPathEngine(
-          _workerContext);
-      FHIRPathTestEvaluationServices services = new FHIRPathTestEvaluationServices();
-      engine.setHostServices(services);
+      org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine = _enginePool.get();
+      FHIRPathRequestContext requestContext = new FHIRPathRequestContext(_ctx);
+      requestContext.traceEnabled = trace == null || trace.booleanValue();
+      requestContext.minimalResults = "minimal".equals(resultFormat);
+      requestContext.timings = timings;
 
       // pass through all the variables
       if (variables != null) {
-        paramsPart.addPart(variables);
-        java.util.List<org.hl7.fhir.r4b.model.Parameters.ParametersParameterComponent> variableParts = variables
-            .getPart();
-        for (int i = 0; i < variableParts.size(); i++) {
-          org.hl7.fhir.r4b.model.Parameters.ParametersParameterComponent part = variableParts.get(i);
-          if (part.getResource() != null)
-            services.mapVariables.put(part.getName(), part.getResource());
-          else {
-            if (part.getExtensionByUrl("http://fhir.forms-lab.com/StructureDefinition/json-value") != null) {
-              // this is not currently supported...
-              services.mapVariables.put(part.getName(), null);
-            } else {
-              services.mapVariables.put(part.getName(), part.getValue());
-            }
-          }
-        }
+        if (paramsPart != null)
+          paramsPart.addPart(variables);
+        requestContext.addVariables(variables);
       }
 
-      // Parse out the expression tree for the debug output
-      try {
-        org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree;
-        // if (contextExpression != null)
-        // parseTree = engine.parse(contextExpression, expression);
-        // else
-        parseTree = engine.parse(expression);
-        SimplifiedExpressionNode simplifiedAST = SimplifiedExpressionNode.From(parseTree);
-        JsonNode nodeParse = AstMapper.From(simplifiedAST);
-        
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
-        objectMapper.setSerializationInclusion(Include.NON_NULL);
-
-        String jsonAstTree = objectMapper.writeValueAsString(nodeParse);
-        // System.out.println(jsonAstTree);
-        ParametersUtil.addPartString(_ctx, paramsPart, "parseDebugTree", jsonAstTree);
-
-        String jsonAstTree2 = objectMapper.writeValueAsString(simplifiedAST);
-        // System.out.println(jsonAstTree2);
-        ParametersUtil.addPartString(_ctx, paramsPart, "parseDebugTreeJava", jsonAstTree2);
-
-      } catch (IOException ex) {
-        System.out.println(ex.getMessage());
+      // Parse the expression once (shared across requests via the cache), this tree
+      // is used for both the debug output and the evaluation of each context node
+      long start = System.nanoTime();
+      org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree = _expressionCache.get(expression, text -> parse(engine, text));
+      start = timings.record("parse", start);
+
+      // Parse out the expression tree for the debug output (unless the caller doesn't want it)
+      if (paramsPart != null && (debugTree == null || debugTree.booleanValue())) {
+        final Parameters.ParametersParameterComponent debugPart = paramsPart;
+        try {
+          DebugTreeCache.DebugTrees trees = _debugTreeCache.get(expression,
+              () -> SimplifiedExpressionNode.From(parseTree));
+          ParametersUtil.addPartString(_ctx, debugPart, "parseDebugTree", trees.parseDebugTree());
+          ParametersUtil.addPartString(_ctx, debugPart, "parseDebugTreeJava", trees.parseDebugTreeJava());
+        } catch (IOException ex) {
+          System.out.println(ex.getMessage());
+        }
+        start = timings.record("debug-tree", start);
       }
 
       // locate all of the context objects
-      List<IBase> contextOutputs;
-      if (contextExpression != null) {
+      List<Base> contextOutputs = evaluateContext(engine, requestContext, resource, contextExpression);
+      timings.record("context", start);
+
+      // (the evaluate and encode phases are recorded per context node, or together when parallel)
+      evaluateContextNodes(engine, requestContext, contextExpression, contextOutputs, parseTree,
+          () -> (Parameters.ParametersParameterComponent) ParametersUtil.addParameterToParameters(_ctx,
+              responseParameters, "result"),
+          parallel != null && parallel.booleanValue());
+
+      timings.complete(_ctx, timing != null && timing.booleanValue() ? paramsPart : null);
+    }
+    return responseParameters;
+  }
+
+  /*
+   * Evaluate a set of named expressions against the one resource.
+   * The resource (and variables) are only echoed once, and each expression gets its own
+   * `expression` group in the output holding its results (or the error it encountered)
+   */
+  @Operation(name = "fhirpath-batch", idempotent = true, returnParameters = {
+      @OperationParam(name = "parameters", min = 1),
+      @OperationParam(name = "expression", min = 0, max = OperationParam.MAX_UNLIMITED)
+  })
+  public IBaseParameters evaluateBatch(HttpServletRequest theServletRequest,
+
+      @OperationParam(name = "resource", min = 1) IBaseResource resource,
+      @OperationParam(name = "context") String contextExpression,
+      @OperationParam(name = "expression", max = OperationParam.MAX_UNLIMITED) List<Parameters.ParametersParameterComponent> expressions,
+      @OperationParam(name = "variables") Parameters.ParametersParameterComponent variables) {
+
+    IBaseParameters responseParameters = ParametersUtil.newInstance(_ctx);
+    responseParameters.setId("fhirpath-batch");
+
+    // echo the parameters used
+    Parameters.ParametersParameterComponent paramsPart = (Parameters.ParametersParameterComponent) ParametersUtil
+        .addParameterToParameters(_ctx, responseParameters,
+            "parameters");
+    ParametersUtil.addPartString(_ctx, paramsPart, "evaluator", FhirService.hapiVersion + " (r4b)");
+    if (contextExpression != null)
+      ParametersUtil.addPartString(_ctx, paramsPart, "context", contextExpression);
+    ParametersUtil.addPartResource(_ctx, paramsPart, "resource", resource);
+
+    org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine = _enginePool.get();
+    FHIRPathRequestContext requestContext = new FHIRPathRequestContext(_ctx);
+    if (variables != null) {
+      paramsPart.addPart(variables);
+      requestContext.addVariables(variables);
+    }
+
+    // the context is shared by all the expressions, so only locate the nodes once
+    List<Base> contextOutputs = evaluateContext(engine, requestContext, resource, contextExpression);
+
+    if (expressions != null) {
+      for (int i = 0; i < expressions.size(); i++) {
+        Parameters.ParametersParameterComponent expressionParam = expressions.get(i);
+        String name = String.format("expression[%d]", i);
+        String expression = null;
+        if (expressionParam.hasValue()) {
+          expression = expressionParam.getValue().primitiveValue();
+        } else {
+          for (Parameters.ParametersParameterComponent part : expressionParam.getPart()) {
+            if (part.getName().equals("name") && part.hasValue())
+              name = part.getValue().primitiveValue();
+            if (part.getName().equals("expression") && part.hasValue())
+              expression = part.getValue().primitiveValue();
+          }
+        }
+
+        Parameters.ParametersParameterComponent groupPart = (Parameters.ParametersParameterComponent) ParametersUtil
+            .addParameterToParameters(_ctx, responseParameters, "expression");
+        groupPart.setValue(new StringType(name));
+        ParametersUtil.addPartString(_ctx, groupPart, "expression", expression);
+
+        // a failure in one expression shouldn't prevent the others from being evaluated
         try {
-          contextOutputs = fhirPath.evaluate(resource, contextExpression, IBase.class);
-        } catch (FhirPathExecutionException e) {
-          throw new InvalidRequestException(
-              Msg.code(327) + "Error parsing FHIRPath expression: " + e.getMessage());
+          if (!isNotBlank(expression))
+            throw new InvalidRequestException("No expression provided for " + name);
+          org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree = _expressionCache.get(expression, text -> parse(engine, text));
+          evaluateContextNodes(engine, requestContext, contextExpression, contextOutputs, parseTree,
+              () -> groupPart.addPart().setName("result"), false);
+        } catch (Exception e) {
+          ParametersUtil.addPartString(_ctx, groupPart, "error", e.getMessage());
         }
-      } else {
-        contextOutputs = new java.util.ArrayList<IBase>();
-        contextOutputs.add(resource);
       }
+    }
+    return responseParameters;
+  }
 
-      for (int i = 0; i < contextOutputs.size(); i++) {
-        org.hl7.fhir.r4b.model.Base node = (org.hl7.fhir.r4b.model.Base) contextOutputs.get(i);
-        Parameters.ParametersParameterComponent resultPart = (Parameters.ParametersParameterComponent) ParametersUtil
-            .addParameterToParameters(_ctx, responseParameters,
-                "result");
-        if (contextExpression != null)
-          resultPart.setValue(new StringType(String.format("%s[%d]", contextExpression, i)));
+  /*
+   * Evaluate the one expression over every resource in an NDJSON stream (e.g. a bulk export file)
+   * and stream the results back as NDJSON, one line per input resource, in the input order.
+   * The input is the request body, or a file from the `fhirpath.bulk.directory` folder (if configured).
+   * Query parameters: expression, context, file, parallel (true to process on all the cores)
+   */
+  @Operation(name = "fhirpath-bulk", idempotent = true, manualRequest = true, manualResponse = true)
+  public void evaluateBulk(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+      throws IOException {
+    evaluateBulk(theServletRequest.getInputStream(), theServletRequest.getParameter("file"),
+        theServletRequest.getParameter("context"), theServletRequest.getParameter("expression"),
+        Boolean.parseBoolean(theServletRequest.getParameter("parallel")), bulkOutput(theServletResponse));
+  }
 
-        List<org.hl7.fhir.r4b.model.Base> outputs;
-        try {
-          services.traceToParameter = resultPart;
-          outputs = engine.evaluate(node, expression);
-        } catch (FhirPathExecutionException e) {
-          throw new InvalidRequestException(
-              Msg.code(327) + "Error parsing FHIRPath expression: " + e.getMessage());
+  void evaluateBulk(InputStream body, String file, String contextExpression, String expression, boolean parallel,
+      BulkOutput output) throws IOException {
+    if (!isNotBlank(expression))
+      throw new InvalidRequestException("The expression parameter is required");
+
+    // parse the expressions once up front (which also reports any syntax errors before streaming)
+    org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine = _enginePool.get();
+    org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree;
+    org.hl7.fhir.r4b.fhirpath.ExpressionNode contextTree = null;
+    try {
+      parseTree = _expressionCache.get(expression, text -> parse(engine, text));
+      if (isNotBlank(contextExpression))
+        contextTree = _expressionCache.get(contextExpression, text -> parse(engine, text));
+    } catch (FHIRException e) {
+      throw new InvalidRequestException(
+          Msg.code(327) + "Error parsing FHIRPath expression: " + e.getMessage());
+    }
+
+    final org.hl7.fhir.r4b.fhirpath.ExpressionNode contextNode = contextTree;
+    try (BufferedReader reader = openBulkInput(body, file)) {
+      NdjsonPipeline.run(reader, output.open("application/fhir+ndjson"), parallel,
+          (index, line) -> evaluateBulkLine(index, line, contextExpression, contextNode, parseTree));
+    }
+  }
+
+  /*
+   * Where the bulk operations write their output, opened (with the content type) once the
+   * request has been checked, so any errors up to then are still reported as the response
+   */
+  interface BulkOutput {
+    Writer open(String contentType) throws IOException;
+  }
+
+  private static BulkOutput bulkOutput(HttpServletResponse theServletResponse) {
+    return (contentType) -> {
+      theServletResponse.setStatus(200);
+      theServletResponse.setContentType(contentType);
+      theServletResponse.setCharacterEncoding("UTF-8");
+      return theServletResponse.getWriter();
+    };
+  }
+
+  private static BufferedReader openBulkInput(InputStream body, String file) throws IOException {
+    if (!isNotBlank(file))
+      return new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+    return Files.newBufferedReader(bulkFile(file), StandardCharsets.UTF_8);
+  }
+
+  private static Path bulkFile(String file) {
+    // only read files from the configured folder
+    String directory = System.getProperty("fhirpath.bulk.directory");
+    if (!isNotBlank(directory))
+      throw new InvalidRequestException("Reading local files is not enabled (set fhirpath.bulk.directory)");
+    Path root = Paths.get(directory).toAbsolutePath().normalize();
+    Path path = root.resolve(file).normalize();
+    if (!path.startsWith(root) || !Files.isRegularFile(path))
+      throw new InvalidRequestException("File not found: " + file);
+    return path;
+  }
+
+  /*
+   * $fhirpath for very large resources (e.g. 50-100MB Bundles): the request body is the resource
+   * itself (json, or xml by the content type), or a file from the `fhirpath.bulk.directory` folder,
+   * read straight from the stream rather than buffered by the RestfulServer and wrapped in a
+   * Parameters resource. The resource is not echoed back, only the results (as for $fhirpath).
+   * Query parameters: expression, context, file, parallel, result-format, timing, and parser:
+   * - hapi (default) parses into the HAPI model
+   * - element parses with the r4b element model (as used by $transform) and evaluates directly
+   *   over the Element tree (trace output isn't available in this mode)
+   * The time taken and bytes allocated by reading the resource are published as the `read` phase
+   * and `fhirpath.read.allocated` (tagged with the parser), and echoed with timing=true.
+   */
+  @Operation(name = "fhirpath-large", idempotent = true, manualRequest = true, manualResponse = true)
+  public void evaluateLarge(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+      throws IOException {
+    String file = theServletRequest.getParameter("file");
+    boolean xml = theServletRequest.getContentType() != null && theServletRequest.getContentType().contains("xml");
+    if (isNotBlank(file))
+      xml = file.endsWith(".xml");
+    IBaseParameters responseParameters;
+    try (InputStream input = isNotBlank(file) ? Files.newInputStream(bulkFile(file)) : theServletRequest.getInputStream()) {
+      responseParameters = evaluateLarge(input, xml,
+          theServletRequest.getParameter("parser"),
+          theServletRequest.getParameter("context"),
+          theServletRequest.getParameter("expression"),
+          Boolean.parseBoolean(theServletRequest.getParameter("parallel")),
+          theServletRequest.getParameter("result-format"),
+          Boolean.parseBoolean(theServletRequest.getParameter("timing")));
+    }
+
+    theServletResponse.setStatus(200);
+    theServletResponse.setContentType("application/fhir+json");
+    theServletResponse.setCharacterEncoding("UTF-8");
+    _ctx.newJsonParser()
+        .setPrettyPrint(Boolean.parseBoolean(theServletRequest.getParameter("_pretty")))
+        .encodeResourceToWriter(responseParameters, theServletResponse.getWriter());
+  }
+
+  IBaseParameters evaluateLarge(InputStream input, boolean xml, String parserName, String contextExpression,
+      String expression, boolean parallel, String resultFormat, boolean timing) {
+    if (!isNotBlank(expression))
+      throw new InvalidRequestException("The expression parameter is required");
+    if (!isNotBlank(parserName))
+      parserName = "hapi";
+    if (!"hapi".equals(parserName) && !"element".equals(parserName))
+      throw new InvalidRequestException("Unknown parser '" + parserName + "', use hapi or element");
+
+    IBaseParameters responseParameters = ParametersUtil.newInstance(_ctx);
+    responseParameters.setId("fhirpath");
+    PhaseTimings timings = new PhaseTimings("hapi-r4b", "fhirpath-large");
+    Parameters.ParametersParameterComponent paramsPart = (Parameters.ParametersParameterComponent) ParametersUtil
+        .addParameterToParameters(_ctx, responseParameters, "parameters");
+    ParametersUtil.addPartString(_ctx, paramsPart, "evaluator", FhirService.hapiVersion + " (r4b)");
+    if (contextExpression != null)
+      ParametersUtil.addPartString(_ctx, paramsPart, "context", contextExpression);
+    ParametersUtil.addPartString(_ctx, paramsPart, "expression", expression);
+    ParametersUtil.addPartString(_ctx, paramsPart, "parser", parserName);
+
+    org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine = _enginePool.get();
+    FHIRPathRequestContext requestContext = new FHIRPathRequestContext(_ctx);
+    requestContext.traceEnabled = "hapi".equals(parserName);
+    requestContext.minimalResults = "minimal".equals(resultFormat);
+    requestContext.timings = timings;
+
+    long start = System.nanoTime();
+    org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree;
+    try {
+      parseTree = _expressionCache.get(expression, text -> parse(engine, text));
+    } catch (FHIRException e) {
+      throw new InvalidRequestException(
+          Msg.code(327) + "Error parsing FHIRPath expression: " + e.getMessage());
+    }
+    start = timings.record("parse", start);
+
+    long allocated = allocatedBytes();
+    Base resource = readResource(input, xml, "element".equals(parserName));
+    allocated = allocated >= 0 ? allocatedBytes() - allocated : -1;
+    start = timings.record("read", start);
+    if (allocated >= 0) {
+      DistributionSummary.builder("fhirpath.read.allocated").baseUnit("bytes")
+          .description("Bytes allocated reading the resource for $fhirpath-large")
+          .tag("parser", parserName)
+          .register(Metrics.globalRegistry).record(allocated);
+    }
+
+    List<Base> contextOutputs = evaluateContext(engine, requestContext, resource, contextExpression);
+    timings.record("context", start);
+
+    evaluateContextNodes(engine, requestContext, contextExpression, contextOutputs, parseTree,
+        () -> (Parameters.ParametersParameterComponent) ParametersUtil.addParameterToParameters(_ctx,
+            responseParameters, "result"),
+        parallel);
+
+    timings.complete(_ctx, timing ? paramsPart : null);
+    if (timing && allocated >= 0)
+      ParametersUtil.addPartDecimal(_ctx, paramsPart, "readAllocatedBytes", (double) allocated);
+    return responseParameters;
+  }
+
+  // bytes allocated by the current thread so far (-1 if the JVM can't tell)
+  private static long allocatedBytes() {
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+        && threads.isThreadAllocatedMemoryEnabled())
+      return threads.getCurrentThreadAllocatedBytes();
+    return -1;
+  }
+
+  private Base readResource(InputStream input, boolean xml, boolean elementModel) {
+    try {
+      if (elementModel)
+        return Manager.parseSingle(_workerContext, input, xml ? Manager.FhirFormat.XML : Manager.FhirFormat.JSON);
+      IParser parser = xml ? _ctx.newXmlParser() : _ctx.newJsonParser();
+      return (Base) parser.parseResource(new InputStreamReader(input, StandardCharsets.UTF_8));
+    } catch (IOException | FHIRException | ca.uhn.fhir.parser.DataFormatException e) {
+      throw new InvalidRequestException("Error reading the resource: " + e.getMessage());
+    }
+  }
+
+  private String evaluateBulkLine(long index, String line, String contextExpression,
+      org.hl7.fhir.r4b.fhirpath.ExpressionNode contextTree, org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree)
+      throws IOException {
+    // this is called from the worker threads, so takes the engine for the current thread
+    org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine = _enginePool.get();
+    FHIRPathRequestContext requestContext = new FHIRPathRequestContext(_ctx);
+    IParser parser = requestContext.getJsonParser();
+    Base resource = (Base) parser.parseResource(line);
+    requestContext.references = new ReferenceIndex(resource);
+
+    List<Base> contextOutputs;
+    if (contextTree != null)
+      contextOutputs = evaluate(engine, requestContext, resource, contextTree);
+    else
+      contextOutputs = List.of(resource);
+
+    StringWriter sw = new StringWriter();
+    try (JsonGenerator gen = NdjsonPipeline._jsonFactory.createGenerator(sw)) {
+      gen.writeStartObject();
+      gen.writeNumberField("index", index);
+      gen.writeStringField("resourceType", resource.fhirType());
+      if (((IBaseResource) resource).getIdElement().hasIdPart())
+        gen.writeStringField("id", ((IBaseResource) resource).getIdElement().getIdPart());
+      gen.writeArrayFieldStart("result");
+      for (int i = 0; i < contextOutputs.size(); i++) {
+        gen.writeStartObject();
+        if (contextTree != null)
+          gen.writeStringField("context", String.format("%s[%d]", contextExpression, i));
+        gen.writeArrayFieldStart("values");
+        for (Base value : evaluate(engine, requestContext, contextOutputs.get(i), parseTree)) {
+          writeMinimalValue(gen, value, parser);
         }
+        gen.writeEndArray();
+        gen.writeEndObject();
+      }
+      gen.writeEndArray();
+      gen.writeEndObject();
+    }
+    return sw.toString();
+  }
 
-        for (IBase nextOutput : outputs) {
-          if (nextOutput instanceof IBaseResource) {
-            ParametersUtil.addPartResource(_ctx, resultPart, nextOutput.fhirType(), (IBaseResource) nextOutput);
-          } else if (nextOutput instanceof org.hl7.fhir.r4b.model.BackboneElement) {
-            Parameters.ParametersParameterComponent backboneValue = resultPart.addPart();
-            backboneValue.setName(nextOutput.fhirType());
-            String backboneJson = parser.encodeToString(nextOutput);
-            backboneValue.addExtension("http://fhir.forms-lab.com/StructureDefinition/json-value",
-                new StringType(backboneJson));
-          } else {
-            try {
-              if (nextOutput instanceof StringType) {
-                StringType st = (StringType) nextOutput;
-                if (st.getValue() == "")
-                  ParametersUtil.addPart(_ctx, resultPart, "empty-string", nextOutput);
-                else
-                  ParametersUtil.addPart(_ctx, resultPart, nextOutput.fhirType(), nextOutput);
-              } else {
-                ParametersUtil.addPart(_ctx, resultPart, nextOutput.fhirType(), nextOutput);
-              }
-            } catch (java.lang.IllegalArgumentException e) {
-              // ParametersUtil.addParameterToParameters(ctx, resultPart,
-              // nextOutput.fhirType());
-            }
-          }
+  // type + value for primitives, the json content for anything else
+  static void writeMinimalValue(JsonGenerator gen, Base value, IParser parser) throws IOException {
+    gen.writeStartObject();
+    gen.writeStringField("type", value.fhirType());
+    if (value.isPrimitive()) {
+      gen.writeStringField("value", value.primitiveValue());
+    } else {
+      gen.writeFieldName("json");
+      gen.writeRawValue(parser.encodeToString(value));
+    }
+    gen.writeEndObject();
+  }
+
+  private List<Base> evaluateContext(org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine,
+      FHIRPathRequestContext requestContext, IBase resource, String contextExpression) {
+    // resolve() looks up the references in the input resource (indexed on first use)
+    requestContext.references = new ReferenceIndex((Base) resource);
+    // (using the same engine, so the context also has access to the variables)
+    List<Base> contextOutputs;
+    if (contextExpression != null) {
+      try {
+        org.hl7.fhir.r4b.fhirpath.ExpressionNode contextTree = _expressionCache.get(contextExpression, text -> parse(engine, text));
+        contextOutputs = evaluate(engine, requestContext, (Base) resource, contextTree);
+      } catch (FHIRException e) {
+        throw new InvalidRequestException(
+            Msg.code(327) + "Error parsing FHIRPath expression: " + e.getMessage());
+      }
+    } else {
+      contextOutputs = new java.util.ArrayList<Base>();
+      contextOutputs.add((Base) resource);
+    }
+    return contextOutputs;
+  }
+
+  private void evaluateContextNodes(org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine,
+      FHIRPathRequestContext requestContext, String contextExpression, List<Base> contextOutputs,
+      org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree,
+      Supplier<Parameters.ParametersParameterComponent> newResultPart, boolean parallel) {
+    // create all the result parts up front so they stay in the context order
+    List<Parameters.ParametersParameterComponent> resultParts = new ArrayList<>();
+    for (int i = 0; i < contextOutputs.size(); i++) {
+      Parameters.ParametersParameterComponent resultPart = newResultPart.get();
+      if (contextExpression != null)
+        resultPart.setValue(new StringType(String.format("%s[%d]", contextExpression, i)));
+      resultParts.add(resultPart);
+    }
+
+    if (!parallel || contextOutputs.size() < 2) {
+      for (int i = 0; i < contextOutputs.size(); i++)
+        evaluateContextNode(engine, requestContext, contextOutputs.get(i), parseTree, resultParts.get(i));
+      return;
+    }
+
+    // each node gets its own request context (so the traces go to its own result part)
+    // and is evaluated on the engine belonging to the pool thread that picks it up.
+    // The nodes don't record their own phases (the time on each thread would add up to more than
+    // the request took), the wall time of the whole lot is recorded as the evaluate phase instead
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < contextOutputs.size(); i++) {
+      Base node = contextOutputs.get(i);
+      Parameters.ParametersParameterComponent resultPart = resultParts.get(i);
+      FHIRPathRequestContext nodeContext = requestContext.newNodeContext();
+      nodeContext.timings = null;
+      tasks.add(() -> {
+        evaluateContextNode(_enginePool.get(), nodeContext, node, parseTree, resultPart);
+        return null;
+      });
+    }
+    long start = System.nanoTime();
+    try {
+      for (Future<Void> f : _contextNodePool.invokeAll(tasks))
+        f.get();
+      if (requestContext.timings != null)
+        requestContext.timings.record("evaluate", start);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InvalidRequestException("Evaluation was interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new InvalidRequestException(e.getCause().getMessage());
+    }
+  }
+
+  private void evaluateContextNode(org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine,
+      FHIRPathRequestContext requestContext, Base node, org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree,
+      Parameters.ParametersParameterComponent resultPart) {
+    List<Base> outputs;
+    long start = System.nanoTime();
+    try {
+      requestContext.traceToParameter = requestContext.traceEnabled ? resultPart : null;
+      outputs = evaluate(engine, requestContext, node, parseTree);
+    } catch (FhirPathExecutionException e) {
+      throw new InvalidRequestException(
+          Msg.code(327) + "Error parsing FHIRPath expression: " + e.getMessage());
+    } finally {
+      requestContext.traceToParameter = null;
+    }
+
+    if (requestContext.timings != null)
+      start = requestContext.timings.record("evaluate", start);
+
+    IParser parser = requestContext.getJsonParser();
+    for (IBase nextOutput : outputs) {
+      if (nextOutput instanceof org.hl7.fhir.r4b.elementmodel.Element) {
+        // (from $fhirpath-large with the element model parser)
+        nextOutput = elementToModel((org.hl7.fhir.r4b.elementmodel.Element) nextOutput, resultPart);
+        if (nextOutput == null)
+          continue;
+      }
+      if (requestContext.minimalResults)
+        addMinimalOutput(resultPart, (Base) nextOutput, parser);
+      else
+        addOutput(resultPart, nextOutput, parser);
+    }
+    if (requestContext.timings != null)
+      requestContext.timings.record("encode", start);
+  }
+
+  // just the type and the (string) value, non primitives are included as their json
+  private void addMinimalOutput(Parameters.ParametersParameterComponent resultPart, Base nextOutput, IParser parser) {
+    Parameters.ParametersParameterComponent valuePart = resultPart.addPart();
+    valuePart.setName(nextOutput.fhirType());
+    if (nextOutput.isPrimitive()) {
+      valuePart.setValue(new StringType(nextOutput.primitiveValue()));
+    } else {
+      valuePart.addExtension("http://fhir.forms-lab.com/StructureDefinition/json-value",
+          new StringType(parser.encodeToString(nextOutput)));
+    }
+  }
+
+  /*
+   * The HAPI model equivalent of an element model result (resources and datatypes), backbone elements
+   * have no standalone model class, so are added to the result part here as their json (returns null)
+   */
+  private Base elementToModel(org.hl7.fhir.r4b.elementmodel.Element element,
+      Parameters.ParametersParameterComponent resultPart) {
+    var converter = new org.hl7.fhir.r4b.elementmodel.ObjectConverter(_workerContext);
+    try {
+      if (element.isResource())
+        return converter.convert(element);
+      if (element.isPrimitive() || _workerContext.fetchTypeDefinition(element.fhirType()) != null)
+        return converter.convertToType(element);
+    } catch (FHIRException e) {
+      // fall through to the json
+    }
+    StringWriter sw = new StringWriter();
+    try (JsonGenerator gen = NdjsonPipeline._jsonFactory.createGenerator(sw)) {
+      writeElementJson(gen, element);
+    } catch (IOException e) {
+      throw new InvalidRequestException("Error writing the result: " + e.getMessage());
+    }
+    Parameters.ParametersParameterComponent valuePart = resultPart.addPart();
+    valuePart.setName(element.fhirType());
+    valuePart.addExtension("http://fhir.forms-lab.com/StructureDefinition/json-value", new StringType(sw.toString()));
+    return null;
+  }
+
+  // the element's children as json (primitive values only, their extensions/ids are not included)
+  private static void writeElementJson(JsonGenerator gen, org.hl7.fhir.r4b.elementmodel.Element element)
+      throws IOException {
+    if (element.isPrimitive() || !element.hasChildren()) {
+      gen.writeString(element.primitiveValue());
+      return;
+    }
+    gen.writeStartObject();
+    List<org.hl7.fhir.r4b.elementmodel.Element> children = element.getChildren();
+    for (int i = 0; i < children.size(); i++) {
+      org.hl7.fhir.r4b.elementmodel.Element child = children.get(i);
+      gen.writeFieldName(child.getName());
+      if (!child.getProperty().isList()) {
+        writeElementJson(gen, child);
+        continue;
+      }
+      // (the repeats of a list property are consecutive)
+      gen.writeStartArray();
+      writeElementJson(gen, child);
+      while (i + 1 < children.size() && children.get(i + 1).getName().equals(child.getName()))
+        writeElementJson(gen, children.get(++i));
+      gen.writeEndArray();
+    }
+    gen.writeEndObject();
+  }
+
+  private void addOutput(Parameters.ParametersParameterComponent resultPart, IBase nextOutput, IParser parser) {
+    if (nextOutput instanceof IBaseResource) {
+      ParametersUtil.addPartResource(_ctx, resultPart, nextOutput.fhirType(), (IBaseResource) nextOutput);
+    } else if (nextOutput instanceof org.hl7.fhir.r4b.model.BackboneElement) {
+      Parameters.ParametersParameterComponent backboneValue = resultPart.addPart();
+      backboneValue.setName(nextOutput.fhirType());
+      String backboneJson = parser.encodeToString(nextOutput);
+      backboneValue.addExtension("http://fhir.forms-lab.com/StructureDefinition/json-value",
+          new StringType(backboneJson));
+    } else {
+      try {
+        if (nextOutput instanceof StringType) {
+          StringType st = (StringType) nextOutput;
+          if (st.getValue() == "")
+            ParametersUtil.addPart(_ctx, resultPart, "empty-string", nextOutput);
+          else
+            ParametersUtil.addPart(_ctx, resultPart, nextOutput.fhirType(), nextOutput);
+        } else {
+          ParametersUtil.addPart(_ctx, resultPart, nextOutput.fhirType(), nextOutput);
         }
+      } catch (java.lang.IllegalArgumentException e) {
+        // ParametersUtil.addParameterToParameters(ctx, resultPart,
+        // nextOutput.fhirType());
       }
     }
-    return responseParameters;
+  }
+
+  static List<org.hl7.fhir.r4b.model.Base> evaluate(org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine,
+      FHIRPathRequestContext requestContext, org.hl7.fhir.r4b.model.Base node,
+      org.hl7.fhir.r4b.fhirpath.ExpressionNode parseTree) {
+    // same resource handling as engine.evaluate(node, parseTree), but with the request's appContext
+    org.hl7.fhir.r4b.model.Base resource = node != null && node.isResource() ? node : null;
+    requestContext.bind();
+    try {
+      return engine.evaluate(requestContext, resource, resource, node, parseTree);
+    } finally {
+      requestContext.unbind();
+    }
+  }
+
+  // (with resolve() looking up the request's ReferenceIndex, see the ResolveFunction)
+  static org.hl7.fhir.r4b.fhirpath.ExpressionNode parse(org.hl7.fhir.r4b.fhirpath.FHIRPathEngine engine,
+      String expression) {
+    return ResolveFunction.replaceBuiltIn(engine.parse(expression));
   }
 
   @Operation(name = "transform", idempotent = true, returnParameters = {
@@ -203,40 +716,257 @@ public class EvaluatorHAPI {
   })
   public IBaseParameters transform(HttpServletRequest theServletRequest,
       @OperationParam(name = "resource", min = 0) IBaseResource resource,
-      @OperationParam(name = "map") String mapString) {
+      @OperationParam(name = "map") String mapString,
+      @OperationParam(name = "source") String sourceUrl,
+      @OperationParam(name = "timing") BooleanType timing) {
 
     IBaseParameters responseParameters = ParametersUtil.newInstance(_ctx);
     responseParameters.setId("map");
+    PhaseTimings timings = new PhaseTimings("hapi-r4b", "transform");
     Parameters.ParametersParameterComponent paramsPart = (Parameters.ParametersParameterComponent) ParametersUtil
         .addParameterToParameters(_ctx, responseParameters,
             "parameters");
     ParametersUtil.addPartString(_ctx, paramsPart, "evaluator", FhirService.hapiVersion + " (r4b)");
 
-    List<Base> outputs = new ArrayList<>();
-    var tu = new TransformSupportServices(_workerContext, outputs);
-    tu.traceToParameter = (Parameters.ParametersParameterComponent) ParametersUtil.addParameterToParameters(_ctx,
-        responseParameters, "trace");
-    var smu = new StructureMapUtilities(_workerContext, tu);
-    var map = smu.parse(mapString, "map");
-    ParametersUtil.addPartResource(_ctx, paramsPart, "map", map);
+    TransformRequestContext requestContext = new TransformRequestContext();
+    requestContext.traceToParameter = (Parameters.ParametersParameterComponent) ParametersUtil
+        .addParameterToParameters(_ctx, responseParameters, "trace");
+    org.hl7.fhir.r4b.elementmodel.Element target = transform(requestContext, resource, mapString, sourceUrl,
+        paramsPart, timings);
+
+    // compose the element model directly as (pretty) json
+    long start = System.nanoTime();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    composeTarget(target, output, true);
+    String outputContent = output.toString(StandardCharsets.UTF_8);
+    timings.record("encode", start);
+
+    ParametersUtil.addParameterToParametersString(_ctx, responseParameters, "result", outputContent);
+    timings.complete(_ctx, timing != null && timing.booleanValue() ? paramsPart : null);
+    return responseParameters;
+  }
+
+  /*
+   * The same as $transform, but only the target resource is returned, written directly to the
+   * response as it is composed (without the Parameters wrapper, trace or echo of the map).
+   * Add _pretty=true to indent the output.
+   */
+  @Operation(name = "transform-stream", idempotent = true, manualResponse = true)
+  public void transformStream(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse,
+      @OperationParam(name = "resource", min = 0) IBaseResource resource,
+      @OperationParam(name = "map") String mapString,
+      @OperationParam(name = "source") String sourceUrl) throws IOException {
+
+    PhaseTimings timings = new PhaseTimings("hapi-r4b", "transform-stream");
+    org.hl7.fhir.r4b.elementmodel.Element target = transform(new TransformRequestContext(), resource, mapString,
+        sourceUrl, null, timings);
+
+    long start = System.nanoTime();
+    theServletResponse.setStatus(200);
+    theServletResponse.setContentType("application/fhir+json");
+    theServletResponse.setCharacterEncoding("UTF-8");
+    composeTarget(target, theServletResponse.getOutputStream(),
+        Boolean.parseBoolean(theServletRequest.getParameter("_pretty")));
+    timings.record("encode", start);
+    timings.complete(_ctx, null);
+  }
+
+  /*
+   * Run the one map over many source resources, streaming the results back in the input order.
+   * The sources are either:
+   * - NDJSON (application/fhir+ndjson) content in the body, or a file from the `fhirpath.bulk.directory` folder
+   * - a Bundle in the body, each entry is a source
+   * - a Parameters resource in the body, with the `map` (or `source`) and a `resource` part for each source
+   * Query parameters: source (the canonical url of a map already used with $transform), file,
+   * parallel (true to transform on all the cores), output (ndjson (default) or bundle)
+   * A source that fails to transform is reported inline (an error line, or a bundle entry with an outcome)
+   */
+  @Operation(name = "transform-bulk", manualRequest = true, manualResponse = true)
+  public void transformBulk(HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+      throws IOException {
+    transformBulk(theServletRequest.getInputStream(), theServletRequest.getContentType(),
+        theServletRequest.getParameter("file"), theServletRequest.getParameter("source"),
+        Boolean.parseBoolean(theServletRequest.getParameter("parallel")),
+        "bundle".equals(theServletRequest.getParameter("output")), bulkOutput(theServletResponse));
+  }
+
+  void transformBulk(InputStream body, String contentType, String file, String sourceUrl, boolean parallel,
+      boolean bundleOutput, BulkOutput output) throws IOException {
+    PhaseTimings timings = new PhaseTimings("hapi-r4b", "transform-bulk");
+
+    if (isNotBlank(file) || (contentType != null && contentType.contains("ndjson"))) {
+      // check the map is available before streaming the output
+      acquireStructureMap(_mapUtilitiesPool.get(), null, sourceUrl).close();
+      try (BufferedReader reader = openBulkInput(body, file)) {
+        // (the lines are parsed on the worker threads)
+        transformSources(output, () -> {
+          String line = NdjsonPipeline.nextLine(reader);
+          return line != null
+              ? () -> (org.hl7.fhir.r4b.model.Resource) _ctx.newJsonParser().parseResource(line)
+              : null;
+        }, null, sourceUrl, parallel, bundleOutput, timings);
+      }
+    } else {
+      IBaseResource resource;
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+        EncodingEnum encoding = EncodingEnum.forContentType(contentType);
+        resource = (encoding != null ? encoding : EncodingEnum.JSON).newParser(_ctx).parseResource(reader);
+      }
+
+      String mapString = null;
+      List<org.hl7.fhir.r4b.model.Resource> sources = new ArrayList<>();
+      if (resource instanceof Parameters) {
+        for (Parameters.ParametersParameterComponent part : ((Parameters) resource).getParameter()) {
+          if (part.getName().equals("map") && part.hasValue())
+            mapString = part.getValue().primitiveValue();
+          else if (part.getName().equals("source") && part.hasValue())
+            sourceUrl = part.getValue().primitiveValue();
+          else if (part.getName().equals("resource") && part.hasResource())
+            sources.add(part.getResource());
+        }
+      } else if (resource instanceof org.hl7.fhir.r4b.model.Bundle) {
+        for (org.hl7.fhir.r4b.model.Bundle.BundleEntryComponent entry : ((org.hl7.fhir.r4b.model.Bundle) resource)
+            .getEntry()) {
+          if (entry.hasResource())
+            sources.add(entry.getResource());
+        }
+      } else {
+        throw new InvalidRequestException("The body must be NDJSON, a Bundle or Parameters");
+      }
+
+      // parse the map before streaming the output (so map errors are reported as the response)
+      acquireStructureMap(_mapUtilitiesPool.get(), mapString, sourceUrl).close();
+      var iterator = sources.iterator();
+      transformSources(output, () -> {
+        if (!iterator.hasNext())
+          return null;
+        org.hl7.fhir.r4b.model.Resource source = iterator.next();
+        return () -> source;
+      }, mapString, sourceUrl, parallel, bundleOutput, timings);
+    }
+    timings.complete(_ctx, null);
+  }
+
+  private void transformSources(BulkOutput output,
+      NdjsonPipeline.ItemSource<Supplier<org.hl7.fhir.r4b.model.Resource>> sources, String mapString,
+      String sourceUrl, boolean parallel, boolean bundleOutput, PhaseTimings timings) throws IOException {
+    Writer writer = output.open(bundleOutput ? "application/fhir+json" : "application/fhir+ndjson");
+    if (bundleOutput)
+      writer.write("{\"resourceType\":\"Bundle\",\"type\":\"batch-response\",\"entry\":[\n");
+    // (on the pool the phases of each source would add up to more than the request took, so
+    // the wall time of the whole pipeline is recorded as the transform phase instead)
+    PhaseTimings itemTimings = parallel ? null : timings;
+    long start = System.nanoTime();
+    long count = NdjsonPipeline.run(sources, writer, bundleOutput ? ",\n" : "\n", parallel,
+        (index, source) -> transformBulkItem(source, mapString, sourceUrl, bundleOutput, itemTimings));
+    if (parallel)
+      timings.record("transform", start);
+    if (bundleOutput)
+      writer.write("\n]}\n");
+    else if (count > 0)
+      writer.write('\n');
+    writer.flush();
+  }
+
+  // transform one of the bulk sources (on a pipeline worker thread), returning its output json
+  private String transformBulkItem(Supplier<org.hl7.fhir.r4b.model.Resource> source, String mapString,
+      String sourceUrl, boolean bundleOutput, PhaseTimings timings) throws IOException {
+    String content;
+    try {
+      org.hl7.fhir.r4b.elementmodel.Element target = transform(new TransformRequestContext(), source.get(),
+          mapString, sourceUrl, null, timings);
+      long start = System.nanoTime();
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      composeTarget(target, output, false);
+      content = output.toString(StandardCharsets.UTF_8);
+      if (timings != null)
+        timings.record("encode", start);
+    } catch (RuntimeException e) {
+      // (the ndjson output reports the error line from the pipeline)
+      if (!bundleOutput)
+        throw e;
+      return bundleEntry(null, "422 Unprocessable Entity", e.getMessage());
+    }
+    return bundleOutput ? bundleEntry(content, "200 OK", null) : content;
+  }
+
+  // a batch-response entry with the resource (or an outcome with the error)
+  private static String bundleEntry(String resourceJson, String status, String error) throws IOException {
+    StringWriter sw = new StringWriter();
+    try (JsonGenerator gen = NdjsonPipeline._jsonFactory.createGenerator(sw)) {
+      gen.writeStartObject();
+      if (resourceJson != null) {
+        gen.writeFieldName("resource");
+        gen.writeRawValue(resourceJson);
+      }
+      gen.writeObjectFieldStart("response");
+      gen.writeStringField("status", status);
+      if (error != null) {
+        gen.writeObjectFieldStart("outcome");
+        gen.writeStringField("resourceType", "OperationOutcome");
+        gen.writeArrayFieldStart("issue");
+        gen.writeStartObject();
+        gen.writeStringField("severity", "error");
+        gen.writeStringField("code", "processing");
+        gen.writeStringField("diagnostics", error);
+        gen.writeEndObject();
+        gen.writeEndArray();
+        gen.writeEndObject();
+      }
+      gen.writeEndObject();
+      gen.writeEndObject();
+    }
+    return sw.toString();
+  }
+
+  // run the map (echoing the map used into the paramsPart if provided, and recording the phases
+  // if timings are provided), returning the target element
+  private org.hl7.fhir.r4b.elementmodel.Element transform(TransformRequestContext requestContext,
+      IBaseResource resource, String mapString, String sourceUrl,
+      Parameters.ParametersParameterComponent paramsPart, PhaseTimings timings) {
+    long start = System.nanoTime();
+    var smu = _mapUtilitiesPool.get();
+    org.hl7.fhir.r4b.elementmodel.Element target;
+    try (StructureMapCache.Lease lease = acquireStructureMap(smu, mapString, sourceUrl)) {
+      StructureMap map = lease.getMap();
+      if (paramsPart != null)
+        ParametersUtil.addPartResource(_ctx, paramsPart, "map", map);
+      if (timings != null)
+        start = timings.record("parse", start);
 
-    org.hl7.fhir.r4b.elementmodel.Element target = getTargetResourceFromStructureMap(map);
-    smu.transform(null, (org.hl7.fhir.r4b.model.Resource) resource, map, target);
+      target = getTargetResourceFromStructureMap(map);
+      requestContext.bind();
+      try {
+        smu.transform(requestContext, (org.hl7.fhir.r4b.model.Resource) resource, map, target);
+      } finally {
+        requestContext.unbind();
+      }
+    }
+    if (timings != null)
+      timings.record("transform", start);
+    return target;
+  }
 
-    Writer sw = new java.io.StringWriter();
-    var jsonCreator = new org.hl7.fhir.r4b.formats.JsonCreatorDirect(sw);
+  // write the element model straight out as json (no round trip through the HAPI model/parser)
+  private void composeTarget(org.hl7.fhir.r4b.elementmodel.Element target, OutputStream output, boolean pretty) {
     var jp = new org.hl7.fhir.r4b.elementmodel.JsonParser(_workerContext);
     try {
-      jp.compose(target, jsonCreator);
-    } catch (Exception e) {
-      System.out.println(e.getMessage());
+      jp.compose(target, output, pretty ? OutputStyle.PRETTY : OutputStyle.NORMAL, null);
+    } catch (IOException | FHIRException e) {
+      throw new InvalidRequestException("Error writing the transform output: " + e.getMessage());
     }
-    // run this string through the other parser to make it pretty
-    var parser = _ctx.newJsonParser().setPrettyPrint(true);
-    var outputContent = parser.encodeResourceToString(parser.parseResource(sw.toString()));
+  }
 
-    ParametersUtil.addParameterToParametersString(_ctx, responseParameters, "result", outputContent);
-    return responseParameters;
+  // the map from its text (parsed once and cached), or a map already registered with this canonical url
+  private StructureMapCache.Lease acquireStructureMap(StructureMapUtilities smu, String mapString, String sourceUrl) {
+    if (isNotBlank(mapString))
+      return _structureMapCache.acquire(mapString, (text) -> smu.parse(text, "map"));
+    if (!isNotBlank(sourceUrl))
+      throw new InvalidRequestException("Either the map or the source (canonical url of a map) parameter is required");
+    StructureMapCache.Lease lease = _structureMapCache.acquireByUrl(sourceUrl, (text) -> smu.parse(text, "map"));
+    if (lease == null)
+      throw new InvalidRequestException("The map " + sourceUrl + " has not been registered, provide the map content");
+    return lease;
   }
 
   private org.hl7.fhir.r4b.elementmodel.Element getTargetResourceFromStructureMap(StructureMap map) {
@@ -272,15 +1002,18 @@ public class EvaluatorHAPI {
     return Manager.build(_workerContext, structureDefinition);
   }
 
+  /*
+   * Shared by all the transforms, the request specific state is in the TransformRequestContext
+   * (passed as the appInfo)
+   */
   public class TransformSupportServices implements ITransformerServices {
 
-    public Parameters.ParametersParameterComponent traceToParameter;
-    private List<Base> outputs;
     private IWorkerContext context;
+    private ConceptMapEngine conceptMapEngine;
 
-    public TransformSupportServices(IWorkerContext worker, List<Base> outputs) {
+    public TransformSupportServices(IWorkerContext worker) {
       this.context = worker;
-      this.outputs = outputs;
+      this.conceptMapEngine = new ConceptMapEngine(worker);
     }
 
     @Override
@@ -292,14 +1025,13 @@ public class EvaluatorHAPI {
     @Override
     public Base createResource(Object appInfo, Base res, boolean atRootofTransform) {
       if (atRootofTransform)
-        outputs.add(res);
+        ((TransformRequestContext) appInfo).outputs.add(res);
       return res;
     }
 
     @Override
     public Coding translate(Object appInfo, Coding source, String conceptMapUrl) throws FHIRException {
-      ConceptMapEngine cme = new ConceptMapEngine(context);
-      return cme.translate(source, conceptMapUrl);
+      return conceptMapEngine.translate(source, conceptMapUrl);
     }
 
     @Override
@@ -326,129 +1058,12 @@ public class EvaluatorHAPI {
 
     @Override
     public void log(String message) {
-      if (traceToParameter != null) {
-        Parameters.ParametersParameterComponent traceValue = traceToParameter.addPart();
+      TransformRequestContext requestContext = TransformRequestContext.current();
+      if (requestContext != null && requestContext.traceToParameter != null) {
+        Parameters.ParametersParameterComponent traceValue = requestContext.traceToParameter.addPart();
         traceValue.setName("debug");
         traceValue.setValue(new StringType(message));
       }
     }
   }
-
-  public class FHIRPathTestEvaluationServices implements IEvaluationContext {
-    public Parameters.ParametersParameterComponent traceToParameter;
-    public java.util.HashMap<String, org.hl7.fhir.r4b.model.Base> mapVariables;
-
-    public FHIRPathTestEvaluationServices() {
-      mapVariables = new HashMap<String, org.hl7.fhir.r4b.model.Base>();
-    }
-
-    @Override
-    public List<org.hl7.fhir.r4b.model.Base> resolveConstant(FHIRPathEngine engine, Object appContext, String name, boolean beforeContext, boolean explicitConstant)
-        throws PathEngineException {
-      if (mapVariables != null) {
-        if (mapVariables.containsKey(name)) {
-          List<org.hl7.fhir.r4b.model.Base> result = new java.util.ArrayList<org.hl7.fhir.r4b.model.Base>();
-          org.hl7.fhir.r4b.model.Base itemValue = mapVariables.get(name);
-          if (itemValue != null)
-            result.add(itemValue);
-          return result;
-        }
-        // return null; // don't return null as the lack of the variable being defined
-        // is an issue
-      }
-      throw new NotImplementedException(
-          "Variable: `%" + name + "` was not provided");
-    }
-
-    @Override
-    public TypeDetails resolveConstantType(FHIRPathEngine engine, Object appContext, String name, boolean explicitConstant) throws PathEngineException {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices.resolveConstantType), when item is element: " + name);
-    }
-
-    @Override
-    public boolean log(String argument, List<org.hl7.fhir.r4b.model.Base> data) {
-      if (traceToParameter != null) {
-        Parameters.ParametersParameterComponent traceValue = traceToParameter.addPart();
-        traceValue.setName("trace");
-        traceValue.setValue(new StringType(argument));
-        IParser parser = _ctx.newJsonParser();
-
-        for (IBase nextOutput : data) {
-          if (nextOutput instanceof IBaseResource) {
-            ParametersUtil.addPartResource(_ctx, traceValue, nextOutput.fhirType(), (IBaseResource) nextOutput);
-          } else if (nextOutput instanceof org.hl7.fhir.r4b.model.BackboneElement) {
-            Parameters.ParametersParameterComponent backboneValue = traceValue.addPart();
-            backboneValue.setName(nextOutput.fhirType());
-            String backboneJson = parser.encodeToString(nextOutput);
-            backboneValue.addExtension("http://fhir.forms-lab.com/StructureDefinition/json-value",
-                new StringType(backboneJson));
-          } else {
-            // if ( netOutput instanceOf org.hl7.fhir.r4b.model.BackboneElement)
-            try {
-              if (nextOutput instanceof StringType) {
-                StringType st = (StringType) nextOutput;
-                if (st.getValue() == "")
-                  ParametersUtil.addPart(_ctx, traceValue, "empty-string", nextOutput);
-                else
-                  ParametersUtil.addPart(_ctx, traceValue, nextOutput.fhirType(), nextOutput);
-              } else {
-                ParametersUtil.addPart(_ctx, traceValue, nextOutput.fhirType(), nextOutput);
-              }
-              // ParametersUtil.addPart(ctx, traceValue, nextOutput.fhirType(), nextOutput);
-            } catch (java.lang.IllegalArgumentException e) {
-              // ParametersUtil.addParameterToParameters(ctx, resultPart,
-              // nextOutput.fhirType());
-            }
-          }
-        }
-        return true;
-      }
-      return false;
-    }
-
-    @Override
-    public FunctionDetails resolveFunction(FHIRPathEngine engine, String functionName) {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices.resolveFunction), when item is element (for " + functionName
-              + ")");
-    }
-
-    @Override
-    public TypeDetails checkFunction(FHIRPathEngine engine, Object appContext, String functionName, TypeDetails focus,
-            List<TypeDetails> parameters) throws PathEngineException {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices.checkFunction), when item is element: " + functionName);
-    }
-
-    @Override
-    public List<org.hl7.fhir.r4b.model.Base> executeFunction(FHIRPathEngine engine, Object appContext, List<org.hl7.fhir.r4b.model.Base> focus,
-        String functionName, List<List<org.hl7.fhir.r4b.model.Base>> parameters) {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices.executeFunction), when item is element: " + functionName);
-    }
-
-    @Override
-    public org.hl7.fhir.r4b.model.Base resolveReference(FHIRPathEngine engine, Object appContext, String url,
-        org.hl7.fhir.r4b.model.Base refContext) throws FHIRException {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices.resolveReference), when item is element");
-    }
-
-    @Override
-    public boolean conformsToProfile(FHIRPathEngine engine, Object appContext, org.hl7.fhir.r4b.model.Base item, String url)
-        throws FHIRException {
-      // if (url.equals("http://hl7.org/fhir/StructureDefinition/Patient"))
-      // return true;
-      // if (url.equals("http://hl7.org/fhir/StructureDefinition/Person"))
-      // return false;
-      throw new FHIRException("unknown profile " + url);
-    }
-
-    @Override
-    public org.hl7.fhir.r4b.model.ValueSet resolveValueSet(FHIRPathEngine engine, Object appContext, String url) {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices.resolveReference), when item is element");
-    }
-  }
 }
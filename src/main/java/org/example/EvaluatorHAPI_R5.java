@@ -5,7 +5,6 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
 import ca.uhn.fhir.fhirpath.FhirPathExecutionException;
-import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.i18n.Msg;
 import ca.uhn.fhir.rest.annotation.Operation;
@@ -14,38 +13,67 @@ import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.util.ParametersUtil;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
 
 import jakarta.servlet.http.HttpServletRequest;
 
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r5.model.BooleanType;
 import org.hl7.fhir.r5.model.Parameters;
 import org.hl7.fhir.r5.model.StringType;
-import org.hl7.fhir.r5.fhirpath.FHIRPathEngine;
-import org.hl7.fhir.r5.fhirpath.TypeDetails;
-import org.hl7.fhir.r5.fhirpath.FHIRPathEngine.IEvaluationContext;
-import org.hl7.fhir.r5.fhirpath.FHIRPathUtilityClasses.FunctionDetails;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 
-import org.apache.commons.lang3.NotImplementedException;
 import org.hl7.fhir.exceptions.FHIRException;
-import org.hl7.fhir.exceptions.PathEngineException;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseParameters;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 public class EvaluatorHAPI_R5 {
   public EvaluatorHAPI_R5(FhirContext context){
+    // share the (preloaded) worker context when using the shared FhirContext
+    this(context, context == WorkerContexts.getR5Context()
+        ? WorkerContexts.getR5WorkerContext()
+        : new HapiWorkerContext(context, new DefaultProfileValidationSupport(context)));
+  }
+
+  public EvaluatorHAPI_R5(FhirContext context, IWorkerContext workerContext){
     ctx = context;
-    _workerContext = new HapiWorkerContext(ctx, new DefaultProfileValidationSupport(ctx));
+    _workerContext = workerContext;
+    _services = new FHIRPathTestEvaluationServices_R5(ctx);
+    _enginePool = new EnginePool<>("r5", () -> {
+      org.hl7.fhir.r5.fhirpath.FHIRPathEngine engine = new org.hl7.fhir.r5.fhirpath.FHIRPathEngine(_workerContext);
+      engine.setHostServices(_services);
+      return engine;
+    });
   }
   private FhirContext ctx;
   private IWorkerContext _workerContext;
+  private FHIRPathTestEvaluationServices_R5 _services;
+  private EnginePool<org.hl7.fhir.r5.fhirpath.FHIRPathEngine> _enginePool;
+
+  // parsed expression trees are shared by all instances of this evaluator
+  static final ExpressionCache<org.hl7.fhir.r5.fhirpath.ExpressionNode> _expressionCache = new ExpressionCache<>("r5");
+  static final DebugTreeCache _debugTreeCache = new DebugTreeCache("r5");
+
+  /*
+   * $fhirpath on the R5 server (/fhir5) is the same as $fhirpath-r5, so clients can use the
+   * same operation on each version's endpoint
+   */
+  @Operation(name = "fhirpath", idempotent = true, returnParameters = {
+      @OperationParam(name = "resource", min = 1),
+      @OperationParam(name = "expressions", typeName = "string", min = 1)
+  })
+  public IBaseParameters evaluateFhirpath(HttpServletRequest theServletRequest,
+
+      @OperationParam(name = "resource", min = 1) IBaseResource resource,
+      @OperationParam(name = "context") String contextExpression,
+      @OperationParam(name = "expression") String expression,
+      @OperationParam(name = "variables") Parameters.ParametersParameterComponent variables,
+      @OperationParam(name = "debug-tree") BooleanType debugTree,
+      @OperationParam(name = "timing") BooleanType timing) {
+    return evaluate(theServletRequest, resource, contextExpression, expression, variables, debugTree, timing);
+  }
 
   @Operation(name = "fhirpath-r5", idempotent = true, returnParameters = {
       @OperationParam(name = "resource", min = 1),
@@ -56,12 +84,15 @@ public class EvaluatorHAPI_R5 {
       @OperationParam(name = "resource", min = 1) IBaseResource resource,
       @OperationParam(name = "context") String contextExpression,
       @OperationParam(name = "expression") String expression,
-      @OperationParam(name = "variables") Parameters.ParametersParameterComponent variables) {
+      @OperationParam(name = "variables") Parameters.ParametersParameterComponent variables,
+      @OperationParam(name = "debug-tree") BooleanType debugTree,
+      @OperationParam(name = "timing") BooleanType timing) {
 
     IBaseParameters responseParameters = ParametersUtil.newInstance(ctx);
     responseParameters.setId("fhirpath");
 
     if (isNotBlank(expression)) {
+      PhaseTimings timings = new PhaseTimings("hapi-r5", "fhirpath");
       // echo the parameters used
       Parameters.ParametersParameterComponent paramsPart = (Parameters.ParametersParameterComponent) ParametersUtil
           .addParameterToParameters(ctx, responseParameters,
@@ -72,77 +103,54 @@ public class EvaluatorHAPI_R5 {
       ParametersUtil.addPartString(ctx, paramsPart, "expression", expression);
       ParametersUtil.addPartResource(ctx, paramsPart, "resource", resource);
 
-      IFhirPath fhirPath = ctx.newFhirPath();
-      IParser parser = ctx.newJsonParser();
-
-      org.hl7.fhir.r5.fhirpath.FHIRPathEngine engine = new org.hl7.fhir.r5.fhirpath.FHIRPathEngine(
-          _workerContext);
-      FHIRPathTestEvaluationServices_R5 services = new FHIRPathTestEvaluationServices_R5();
-      engine.setHostServices(services);
+      org.hl7.fhir.r5.fhirpath.FHIRPathEngine engine = _enginePool.get();
+      FHIRPathRequestContext_R5 requestContext = new FHIRPathRequestContext_R5(ctx);
+      IParser parser = requestContext.getJsonParser();
 
       // pass through all the variables
       if (variables != null) {
         paramsPart.addPart(variables);
-        java.util.List<org.hl7.fhir.r5.model.Parameters.ParametersParameterComponent> variableParts = variables
-            .getPart();
-        for (int i = 0; i < variableParts.size(); i++) {
-          org.hl7.fhir.r5.model.Parameters.ParametersParameterComponent part = variableParts.get(i);
-          if (part.getResource() != null)
-            services.mapVariables.put(part.getName(), part.getResource());
-          else {
-            if (part.getExtensionByUrl("http://fhir.forms-lab.com/StructureDefinition/json-value") != null) {
-              // this is not currently supported...
-              services.mapVariables.put(part.getName(), null);
-            } else {
-              services.mapVariables.put(part.getName(), part.getValue());
-            }
-          }
-        }
+        requestContext.addVariables(variables);
       }
 
+      // Parse the expression once (shared across requests via the cache), this tree
+      // is used for both the debug output and the evaluation of each context node
+      long start = System.nanoTime();
+      org.hl7.fhir.r5.fhirpath.ExpressionNode parseTree = _expressionCache.get(expression, engine::parse);
+      start = timings.record("parse", start);
 
-      // Parse out the expression tree for the debug output
-      try {
-        org.hl7.fhir.r5.fhirpath.ExpressionNode parseTree;
-        // if (contextExpression != null)
-        // parseTree = engine.parse(contextExpression, expression);
-        // else
-        parseTree = engine.parse(expression);
-        SimplifiedExpressionNode simplifiedAST = SimplifiedExpressionNode.From(parseTree);
-        JsonNode nodeParse = AstMapper.From(simplifiedAST);
-        
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
-        objectMapper.setSerializationInclusion(Include.NON_NULL);
-
-        String jsonAstTree = objectMapper.writeValueAsString(nodeParse);
-        // System.out.println(jsonAstTree);
-        ParametersUtil.addPartString(ctx, paramsPart, "parseDebugTree", jsonAstTree);
-
-        String jsonAstTree2 = objectMapper.writeValueAsString(simplifiedAST);
-        // System.out.println(jsonAstTree2);
-        ParametersUtil.addPartString(ctx, paramsPart, "parseDebugTreeJava", jsonAstTree2);
-
-      } catch (IOException ex) {
-        System.out.println(ex.getMessage());
+      // Parse out the expression tree for the debug output (unless the caller doesn't want it)
+      if (debugTree == null || debugTree.booleanValue()) {
+        try {
+          DebugTreeCache.DebugTrees trees = _debugTreeCache.get(expression,
+              () -> SimplifiedExpressionNode.From(parseTree));
+          ParametersUtil.addPartString(ctx, paramsPart, "parseDebugTree", trees.parseDebugTree());
+          ParametersUtil.addPartString(ctx, paramsPart, "parseDebugTreeJava", trees.parseDebugTreeJava());
+        } catch (IOException ex) {
+          System.out.println(ex.getMessage());
+        }
+        start = timings.record("debug-tree", start);
       }
 
       // locate all of the context objects
-      List<IBase> contextOutputs;
+      // (using the same engine, so the context also has access to the variables)
+      List<org.hl7.fhir.r5.model.Base> contextOutputs;
       if (contextExpression != null) {
         try {
-          contextOutputs = fhirPath.evaluate(resource, contextExpression, IBase.class);
-        } catch (FhirPathExecutionException e) {
+          org.hl7.fhir.r5.fhirpath.ExpressionNode contextTree = _expressionCache.get(contextExpression, engine::parse);
+          contextOutputs = evaluate(engine, requestContext, (org.hl7.fhir.r5.model.Base) resource, contextTree);
+        } catch (FHIRException e) {
           throw new InvalidRequestException(
               Msg.code(327) + "Error parsing FHIRPath expression: " + e.getMessage());
         }
       } else {
-        contextOutputs = new java.util.ArrayList<IBase>();
-        contextOutputs.add(resource);
+        contextOutputs = new java.util.ArrayList<org.hl7.fhir.r5.model.Base>();
+        contextOutputs.add((org.hl7.fhir.r5.model.Base) resource);
       }
+      start = timings.record("context", start);
 
       for (int i = 0; i < contextOutputs.size(); i++) {
-        org.hl7.fhir.r5.model.Base node = (org.hl7.fhir.r5.model.Base) contextOutputs.get(i);
+        org.hl7.fhir.r5.model.Base node = contextOutputs.get(i);
         Parameters.ParametersParameterComponent resultPart = (Parameters.ParametersParameterComponent) ParametersUtil
             .addParameterToParameters(ctx, responseParameters,
                 "result");
@@ -151,12 +159,13 @@ public class EvaluatorHAPI_R5 {
 
         List<org.hl7.fhir.r5.model.Base> outputs;
         try {
-          services.traceToParameter = resultPart;
-          outputs = engine.evaluate(node, expression);
+          requestContext.traceToParameter = resultPart;
+          outputs = evaluate(engine, requestContext, node, parseTree);
         } catch (FhirPathExecutionException e) {
           throw new InvalidRequestException(
               Msg.code(327) + "Error parsing FHIRPath expression: " + e.getMessage());
         }
+        start = timings.record("evaluate", start);
 
         for (IBase nextOutput : outputs) {
           if (nextOutput instanceof IBaseResource) {
@@ -176,122 +185,23 @@ public class EvaluatorHAPI_R5 {
             }
           }
         }
+        start = timings.record("encode", start);
       }
+      timings.complete(ctx, timing != null && timing.booleanValue() ? paramsPart : null);
     }
     return responseParameters;
   }
 
-  private class FHIRPathTestEvaluationServices_R5 implements IEvaluationContext {
-    public Parameters.ParametersParameterComponent traceToParameter;
-    public java.util.HashMap<String, org.hl7.fhir.r5.model.Base> mapVariables;
-
-    public FHIRPathTestEvaluationServices_R5() {
-      mapVariables = new HashMap<String, org.hl7.fhir.r5.model.Base>();
-    }
-
-    @Override
-    public List<org.hl7.fhir.r5.model.Base> resolveConstant(FHIRPathEngine engine, Object appContext, String name, boolean beforeContext, boolean explicitConstant)
-        throws PathEngineException {
-      if (mapVariables != null) {
-        if (mapVariables.containsKey(name)) {
-          List<org.hl7.fhir.r5.model.Base> result = new java.util.ArrayList<org.hl7.fhir.r5.model.Base>();
-          org.hl7.fhir.r5.model.Base itemValue = mapVariables.get(name);
-          if (itemValue != null)
-            result.add(itemValue);
-          return result;
-        }
-        // return null; // don't return null as the lack of the variable being defined
-        // is an issue
-      }
-      throw new NotImplementedException(
-          "Variable: `%" + name + "` was not provided");
-    }
-
-    @Override
-    public TypeDetails resolveConstantType(FHIRPathEngine engine, Object appContext, String name, boolean explicitConstant) throws PathEngineException {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices_R5.resolveConstantType), when item is element: " + name);
-    }
-
-    @Override
-    public boolean log(String argument, List<org.hl7.fhir.r5.model.Base> data) {
-      if (traceToParameter != null) {
-        Parameters.ParametersParameterComponent traceValue = traceToParameter.addPart();
-        traceValue.setName("trace");
-        traceValue.setValue(new StringType(argument));
-        IParser parser = ctx.newJsonParser();
-
-        for (IBase nextOutput : data) {
-          if (nextOutput instanceof IBaseResource) {
-            ParametersUtil.addPartResource(ctx, traceValue, nextOutput.fhirType(), (IBaseResource) nextOutput);
-          } else if (nextOutput instanceof org.hl7.fhir.r5.model.BackboneElement) {
-            Parameters.ParametersParameterComponent backboneValue = traceValue.addPart();
-            backboneValue.setName(nextOutput.fhirType());
-            String backboneJson = parser.encodeToString(nextOutput);
-            backboneValue.addExtension("http://fhir.forms-lab.com/StructureDefinition/json-value",
-                new StringType(backboneJson));
-          } else {
-            // if ( netOutput instanceOf org.hl7.fhir.r5.model.BackboneElement)
-            try {
-              ParametersUtil.addPart(ctx, traceValue, nextOutput.fhirType(), nextOutput);
-            } catch (java.lang.IllegalArgumentException e) {
-              // ParametersUtil.addParameterToParameters(ctx, resultPart,
-              // nextOutput.fhirType());
-            }
-          }
-        }
-        return true;
-      }
-      return false;
-    }
-
-    @Override
-    public FunctionDetails resolveFunction(FHIRPathEngine engine, String functionName) {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices_R5.resolveFunction), when item is element (for " + functionName
-              + ")");
-    }
-
-    @Override
-    public TypeDetails checkFunction(FHIRPathEngine engine, Object appContext, String functionName, TypeDetails focus, List<TypeDetails> parameters)
-        throws PathEngineException {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices_R5.checkFunction), when item is element: " + functionName);
-    }
-
-    @Override
-    public List<org.hl7.fhir.r5.model.Base> executeFunction(FHIRPathEngine engine, Object appContext, List<org.hl7.fhir.r5.model.Base> focus,
-        String functionName, List<List<org.hl7.fhir.r5.model.Base>> parameters) {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices_R5.executeFunction), when item is element: " + functionName);
-    }
-
-    @Override
-    public org.hl7.fhir.r5.model.Base resolveReference(FHIRPathEngine engine, Object appContext, String url,
-        org.hl7.fhir.r5.model.Base refContext) throws FHIRException {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices_R5.resolveReference), when item is element");
-    }
-
-    @Override
-    public boolean conformsToProfile(FHIRPathEngine engine, Object appContext, org.hl7.fhir.r5.model.Base item, String url)
-        throws FHIRException {
-      // if (url.equals("http://hl7.org/fhir/StructureDefinition/Patient"))
-      // return true;
-      // if (url.equals("http://hl7.org/fhir/StructureDefinition/Person"))
-      // return false;
-      throw new FHIRException("unknown profile " + url);
-    }
-
-    @Override
-    public org.hl7.fhir.r5.model.ValueSet resolveValueSet(FHIRPathEngine engine, Object appContext, String url) {
-      throw new NotImplementedException(
-          "Not done yet (FHIRPathTestEvaluationServices_R5.resolveReference), when item is element");
-    }
-
-    @Override
-    public boolean paramIsType(String name, int index) {
-      throw new UnsupportedOperationException("Unimplemented method 'paramIsType'");
+  static List<org.hl7.fhir.r5.model.Base> evaluate(org.hl7.fhir.r5.fhirpath.FHIRPathEngine engine,
+      FHIRPathRequestContext_R5 requestContext, org.hl7.fhir.r5.model.Base node,
+      org.hl7.fhir.r5.fhirpath.ExpressionNode parseTree) {
+    // same resource handling as engine.evaluate(node, parseTree), but with the request's appContext
+    org.hl7.fhir.r5.model.Base resource = node != null && node.isResource() ? node : null;
+    requestContext.bind();
+    try {
+      return engine.evaluate(requestContext, resource, resource, node, parseTree);
+    } finally {
+      requestContext.unbind();
     }
   }
 }
@@ -10,7 +10,7 @@ import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.util.ParametersUtil;
 
-import jakarta.servlet.http.HttpServletRequest;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 import org.hl7.fhir.r4b.model.BooleanType;
 import org.hl7.fhir.r4b.model.DecimalType;
@@ -32,15 +32,12 @@ import com.ibm.fhir.path.FHIRPathStringValue;
 import com.ibm.fhir.path.FHIRPathSystemValue;
 import com.ibm.fhir.path.evaluator.FHIRPathEvaluator;
 import com.ibm.fhir.path.evaluator.FHIRPathEvaluator.EvaluationContext;
-import com.ibm.fhir.path.exception.FHIRPathException;
 
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Collection;
 
 import com.ibm.fhir.model.format.Format;
 import com.ibm.fhir.model.generator.FHIRGenerator;
-import com.ibm.fhir.model.parser.FHIRParser;
 import com.ibm.fhir.model.resource.Resource;
 
 public class EvaluatorIBM {
@@ -51,22 +48,38 @@ public class EvaluatorIBM {
   }
   private FhirContext ctx;
 
+  // the IBM evaluations run on their own bounded pool (so can't hold up the other engines)
+  static final IsolationPool _pool = new IsolationPool("ibm",
+      Integer.getInteger("fhirpath.ibm.threads", Runtime.getRuntime().availableProcessors()),
+      Integer.getInteger("fhirpath.ibm.queueSize", 100),
+      Long.getLong("fhirpath.ibm.timeoutMs", 10000));
+
+  // the evaluator keeps state while evaluating, so each pool thread reuses its own
+  static final EnginePool<FHIRPathEvaluator> _evaluatorPool = new EnginePool<>("ibm", FHIRPathEvaluator::evaluator);
+
   @Operation(name = "fhirpath-ibm", idempotent = true, returnParameters = {
       @OperationParam(name = "resource", min = 1),
       @OperationParam(name = "expressions", typeName = "string", min = 1)
   })
-  public IBaseParameters evaluate(HttpServletRequest theServletRequest,
+  public IBaseParameters evaluate(RequestDetails theRequestDetails,
 
       @OperationParam(name = "resource", min = 1) IBaseResource hapiResource,
       @OperationParam(name = "context") String contextExpression,
       @OperationParam(name = "expression") String expression,
-      @OperationParam(name = "variables") Parameters.ParametersParameterComponent hapiVariables)
-      throws FHIRPathException {
+      @OperationParam(name = "variables") Parameters.ParametersParameterComponent hapiVariables,
+      @OperationParam(name = "timing") BooleanType timing) {
+    return _pool.call(() -> evaluateIBM(theRequestDetails, hapiResource, contextExpression, expression,
+        hapiVariables, timing));
+  }
 
+  private IBaseParameters evaluateIBM(RequestDetails theRequestDetails, IBaseResource hapiResource,
+      String contextExpression, String expression, Parameters.ParametersParameterComponent hapiVariables,
+      BooleanType timing) {
     IBaseParameters responseParameters = ParametersUtil.newInstance(ctx);
     responseParameters.setId("fhirpath");
 
     if (isNotBlank(expression)) {
+      PhaseTimings timings = new PhaseTimings("ibm", "fhirpath");
       // echo the parameters used
       Parameters.ParametersParameterComponent paramsPart = (Parameters.ParametersParameterComponent) ParametersUtil
           .addParameterToParameters(ctx, responseParameters,
@@ -77,13 +90,13 @@ public class EvaluatorIBM {
       ParametersUtil.addPartString(ctx, paramsPart, "expression", expression);
       ParametersUtil.addPartResource(ctx, paramsPart, "resource", hapiResource);
 
-      ca.uhn.fhir.parser.IParser hapiParser = ctx.newJsonParser();
-      String jsonResource = hapiParser.encodeResourceToString(hapiResource);
+      long start = System.nanoTime();
+      IBMModelConverter converter = new IBMModelConverter(ctx, theRequestDetails);
 
       try {
-        StringReader sr = new StringReader(jsonResource);
-        Resource ibmResource = FHIRParser.parser(Format.JSON).parse(sr);
-        FHIRPathEvaluator evaluator = FHIRPathEvaluator.evaluator();
+        Resource ibmResource = converter.resource(hapiResource);
+        FHIRPathEvaluator evaluator = _evaluatorPool.get();
+        start = timings.record("convert", start);
 
         // locate all of the context objects
         java.util.ArrayList<FHIRPathNode> contextList = new java.util.ArrayList<FHIRPathNode>();
@@ -102,6 +115,7 @@ public class EvaluatorIBM {
         } else {
           contextList.add(FHIRPathResourceNode.resourceNode(ibmResource));
         }
+        start = timings.record("context", start);
         if (hapiVariables != null) {
           paramsPart.addPart(hapiVariables);
         }
@@ -121,15 +135,14 @@ public class EvaluatorIBM {
           }
 
           // TODO: Add the Variables
+          start = System.nanoTime();
           if (hapiVariables != null) {
             java.util.List<org.hl7.fhir.r4b.model.Parameters.ParametersParameterComponent> variableParts = hapiVariables
                 .getPart();
             for (int i = 0; i < variableParts.size(); i++) {
               org.hl7.fhir.r4b.model.Parameters.ParametersParameterComponent part = variableParts.get(i);
               if (part.getResource() != null) {
-                String jsonVarResource = hapiParser.encodeResourceToString(part.getResource());
-                StringReader srVar = new StringReader(jsonVarResource);
-                Resource ibmVarResource = FHIRParser.parser(Format.JSON).parse(srVar);
+                Resource ibmVarResource = converter.variable(part.getName(), part.getResource());
                 ibmCtx.setExternalConstant(part.getName(), FHIRPathResourceNode.resourceNode(ibmVarResource));
               } else {
                 if (part.getExtensionByUrl("http://fhir.forms-lab.com/StructureDefinition/json-value") != null) {
@@ -153,8 +166,11 @@ public class EvaluatorIBM {
             }
           }
 
+          start = timings.record("convert", start);
+
           // Evaluate the expression
           result = evaluator.evaluate(ibmCtx, expression);
+          start = timings.record("evaluate", start);
 
           Parameters.ParametersParameterComponent resultPart = (Parameters.ParametersParameterComponent) ParametersUtil
               .addParameterToParameters(ctx, responseParameters,
@@ -165,10 +181,8 @@ public class EvaluatorIBM {
 
           for (FHIRPathNode node : result) {
             if (node instanceof FHIRPathResourceNode) {
-              StringWriter sw = new StringWriter();
-              FHIRGenerator.generator(Format.JSON, true).generate(node.asResourceNode().resource(), sw);
               ParametersUtil.addPartResource(ctx, resultPart, node.type().name(),
-                  hapiParser.parseResource(sw.toString()));
+                  converter.toHAPI(node.asResourceNode().resource()));
             } else if (node instanceof FHIRPathElementNode) {
               FHIRPathElementNode elementNode = node.asElementNode();
               String elementType = elementNode.element().getClass().getName()
@@ -222,7 +236,9 @@ public class EvaluatorIBM {
               }
             }
           }
+          timings.record("encode", start);
         }
+        timings.complete(ctx, timing != null && timing.booleanValue() ? paramsPart : null);
         return responseParameters;
       } catch (Exception e) {
         throw new InvalidRequestException(
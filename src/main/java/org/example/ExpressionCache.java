@@ -0,0 +1,62 @@
+package org.example;
+
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/*
+ * Bounded, thread-safe cache of parsed FHIRPath expression trees keyed by the expression text.
+ * One instance is held per FHIR version (the parse trees are version specific), and the
+ * hit/miss/eviction counters are published to micrometer tagged with that version.
+ */
+public class ExpressionCache<T> {
+
+  static final long DEFAULT_MAX_SIZE = Long.getLong("fhirpath.expressionCache.maxSize", 5000);
+
+  public ExpressionCache(String fhirVersion) {
+    this(fhirVersion, DEFAULT_MAX_SIZE);
+  }
+
+  public ExpressionCache(String fhirVersion, long maxSize) {
+    _fhirVersion = fhirVersion;
+    _cache = Caffeine.newBuilder()
+        .maximumSize(maxSize)
+        .recordStats()
+        .build();
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, _cache, "fhirpath.expressions",
+        Tags.of("fhirVersion", fhirVersion));
+  }
+
+  private final String _fhirVersion;
+  private final Cache<String, T> _cache;
+
+  /*
+   * Return the parsed tree for the expression, parsing (and caching) it on a miss.
+   * Parse failures propagate to the caller and are not cached.
+   */
+  public T get(String expression, Function<String, T> parser) {
+    return _cache.get(expression, parser);
+  }
+
+  public String getFhirVersion() {
+    return _fhirVersion;
+  }
+
+  public long size() {
+    return _cache.estimatedSize();
+  }
+
+  public CacheStats stats() {
+    return _cache.stats();
+  }
+
+  public void clear() {
+    _cache.invalidateAll();
+  }
+}
@@ -0,0 +1,32 @@
+package org.example;
+
+import java.util.List;
+
+import org.hl7.fhir.exceptions.PathEngineException;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathUtilityClasses.FunctionDetails;
+import org.hl7.fhir.r4b.fhirpath.TypeDetails;
+import org.hl7.fhir.r4b.model.Base;
+
+/*
+ * A FHIRPath function implemented in java for the r4b engine (on top of the engine's own functions).
+ * Implementations are found with the ServiceLoader, list them in
+ * META-INF/services/org.example.FHIRPathFunction (see the FunctionRegistry).
+ * The one instance is shared by all the engines, so must not hold any request state
+ * (that comes through the appContext, a FHIRPathRequestContext).
+ */
+public interface FHIRPathFunction {
+
+  String getName();
+
+  // the description and the min/max number of parameters (checked when the expression is parsed)
+  FunctionDetails getDetails();
+
+  // the type of the result (used when the engine type checks an expression)
+  TypeDetails check(FHIRPathEngine engine, Object appContext, TypeDetails focus, List<TypeDetails> parameters)
+      throws PathEngineException;
+
+  // the parameters have already been evaluated (against the focus)
+  List<Base> execute(FHIRPathEngine engine, Object appContext, List<Base> focus, List<List<Base>> parameters)
+      throws PathEngineException;
+}
@@ -0,0 +1,86 @@
+package org.example;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+import java.util.HashMap;
+
+import org.hl7.fhir.r4b.model.Base;
+import org.hl7.fhir.r4b.model.Parameters;
+
+/*
+ * The per-request state for an evaluation on the (shared) r4b FHIRPath engine.
+ * This is passed to the engine as the appContext so that the host services
+ * don't need to hold any request specific data.
+ */
+public class FHIRPathRequestContext {
+
+  public FHIRPathRequestContext(FhirContext context) {
+    _ctx = context;
+    mapVariables = new HashMap<String, Base>();
+  }
+
+  private FhirContext _ctx;
+  private IParser _jsonParser;
+
+  public HashMap<String, Base> mapVariables;
+  public Parameters.ParametersParameterComponent traceToParameter;
+  public boolean traceEnabled = true;
+  public boolean minimalResults;
+  public PhaseTimings timings;
+  public ReferenceIndex references;
+  public ProfileValidator.Verdicts conformance = new ProfileValidator.Verdicts();
+
+  // The engine's log callback doesn't receive the appContext, so the context is also
+  // bound to the evaluating thread for the duration of an evaluation
+  private static final ThreadLocal<FHIRPathRequestContext> _current = new ThreadLocal<>();
+
+  public static FHIRPathRequestContext current() {
+    return _current.get();
+  }
+
+  public void bind() {
+    _current.set(this);
+  }
+
+  public void unbind() {
+    _current.remove();
+  }
+
+  public void addVariables(Parameters.ParametersParameterComponent variables) {
+    if (variables == null)
+      return;
+    for (Parameters.ParametersParameterComponent part : variables.getPart()) {
+      if (part.getResource() != null)
+        mapVariables.put(part.getName(), part.getResource());
+      else {
+        if (part.getExtensionByUrl("http://fhir.forms-lab.com/StructureDefinition/json-value") != null) {
+          // this is not currently supported...
+          mapVariables.put(part.getName(), null);
+        } else {
+          mapVariables.put(part.getName(), part.getValue());
+        }
+      }
+    }
+  }
+
+  // a context for evaluating a single node on another thread, sharing the variables
+  // but with its own trace target (and parser)
+  public FHIRPathRequestContext newNodeContext() {
+    FHIRPathRequestContext nodeContext = new FHIRPathRequestContext(_ctx);
+    nodeContext.mapVariables = mapVariables;
+    nodeContext.traceEnabled = traceEnabled;
+    nodeContext.minimalResults = minimalResults;
+    nodeContext.timings = timings;
+    nodeContext.references = references;
+    nodeContext.conformance = conformance;
+    return nodeContext;
+  }
+
+  // parsers are not thread safe, but can be re-used for the whole request
+  public IParser getJsonParser() {
+    if (_jsonParser == null)
+      _jsonParser = _ctx.newJsonParser();
+    return _jsonParser;
+  }
+}
@@ -0,0 +1,157 @@
+package org.example;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.ParametersUtil;
+
+import java.util.List;
+
+import org.hl7.fhir.r4b.model.Parameters;
+import org.hl7.fhir.r4b.model.StringType;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r4b.fhirpath.TypeDetails;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine.IEvaluationContext;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathUtilityClasses.FunctionDetails;
+
+import org.apache.commons.lang3.NotImplementedException;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.exceptions.PathEngineException;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/*
+ * Host services for the r4b FHIRPath engine.
+ * This is shared by all the pooled engines, so holds no request state - that
+ * all comes through the appContext (a FHIRPathRequestContext)
+ */
+public class FHIRPathTestEvaluationServices implements IEvaluationContext {
+
+  public FHIRPathTestEvaluationServices(FhirContext context) {
+    _ctx = context;
+    _functions = FunctionRegistry.getDefault();
+  }
+
+  private FhirContext _ctx;
+  private FunctionRegistry _functions;
+
+  @Override
+  public List<org.hl7.fhir.r4b.model.Base> resolveConstant(FHIRPathEngine engine, Object appContext, String name, boolean beforeContext, boolean explicitConstant)
+      throws PathEngineException {
+    // the engine also asks here about plain names at the start of an expression (e.g. `given`),
+    // those are never variables (even if one has the same name) so fall through to the model
+    if (!explicitConstant)
+      return new java.util.ArrayList<>();
+    if (appContext instanceof FHIRPathRequestContext) {
+      var mapVariables = ((FHIRPathRequestContext) appContext).mapVariables;
+      if (mapVariables.containsKey(name)) {
+        List<org.hl7.fhir.r4b.model.Base> result = new java.util.ArrayList<org.hl7.fhir.r4b.model.Base>();
+        org.hl7.fhir.r4b.model.Base itemValue = mapVariables.get(name);
+        if (itemValue != null)
+          result.add(itemValue);
+        return result;
+      }
+      // return null; // don't return null as the lack of the variable being defined
+      // is an issue
+    }
+    throw new NotImplementedException(
+        "Variable: `%" + name + "` was not provided");
+  }
+
+  @Override
+  public TypeDetails resolveConstantType(FHIRPathEngine engine, Object appContext, String name, boolean explicitConstant) throws PathEngineException {
+    throw new NotImplementedException(
+        "Not done yet (FHIRPathTestEvaluationServices.resolveConstantType), when item is element: " + name);
+  }
+
+  @Override
+  public boolean log(String argument, List<org.hl7.fhir.r4b.model.Base> data) {
+    FHIRPathRequestContext requestContext = FHIRPathRequestContext.current();
+    if (requestContext != null && requestContext.traceToParameter != null) {
+      Parameters.ParametersParameterComponent traceValue = requestContext.traceToParameter.addPart();
+      traceValue.setName("trace");
+      traceValue.setValue(new StringType(argument));
+      IParser parser = requestContext.getJsonParser();
+
+      for (IBase nextOutput : data) {
+        if (nextOutput instanceof IBaseResource) {
+          ParametersUtil.addPartResource(_ctx, traceValue, nextOutput.fhirType(), (IBaseResource) nextOutput);
+        } else if (nextOutput instanceof org.hl7.fhir.r4b.model.BackboneElement) {
+          Parameters.ParametersParameterComponent backboneValue = traceValue.addPart();
+          backboneValue.setName(nextOutput.fhirType());
+          String backboneJson = parser.encodeToString(nextOutput);
+          backboneValue.addExtension("http://fhir.forms-lab.com/StructureDefinition/json-value",
+              new StringType(backboneJson));
+        } else {
+          // if ( netOutput instanceOf org.hl7.fhir.r4b.model.BackboneElement)
+          try {
+            if (nextOutput instanceof StringType) {
+              StringType st = (StringType) nextOutput;
+              if (st.getValue() == "")
+                ParametersUtil.addPart(_ctx, traceValue, "empty-string", nextOutput);
+              else
+                ParametersUtil.addPart(_ctx, traceValue, nextOutput.fhirType(), nextOutput);
+            } else {
+              ParametersUtil.addPart(_ctx, traceValue, nextOutput.fhirType(), nextOutput);
+            }
+            // ParametersUtil.addPart(ctx, traceValue, nextOutput.fhirType(), nextOutput);
+          } catch (java.lang.IllegalArgumentException e) {
+            // ParametersUtil.addParameterToParameters(ctx, resultPart,
+            // nextOutput.fhirType());
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  // the java implemented functions (null for names the engine doesn't know either)
+  @Override
+  public FunctionDetails resolveFunction(FHIRPathEngine engine, String functionName) {
+    FHIRPathFunction function = _functions.get(functionName);
+    return function != null ? function.getDetails() : null;
+  }
+
+  @Override
+  public TypeDetails checkFunction(FHIRPathEngine engine, Object appContext, String functionName, TypeDetails focus,
+          List<TypeDetails> parameters) throws PathEngineException {
+    return function(functionName).check(engine, appContext, focus, parameters);
+  }
+
+  @Override
+  public List<org.hl7.fhir.r4b.model.Base> executeFunction(FHIRPathEngine engine, Object appContext, List<org.hl7.fhir.r4b.model.Base> focus,
+      String functionName, List<List<org.hl7.fhir.r4b.model.Base>> parameters) {
+    return function(functionName).execute(engine, appContext, focus, parameters);
+  }
+
+  private FHIRPathFunction function(String functionName) {
+    FHIRPathFunction function = _functions.get(functionName);
+    if (function == null)
+      throw new PathEngineException("Unknown function " + functionName);
+    return function;
+  }
+
+  @Override
+  public org.hl7.fhir.r4b.model.Base resolveReference(FHIRPathEngine engine, Object appContext, String url,
+      org.hl7.fhir.r4b.model.Base refContext) throws FHIRException {
+    // only the resources in the request's input can be resolved
+    if (appContext instanceof FHIRPathRequestContext requestContext && requestContext.references != null)
+      return requestContext.references.resolve(url, refContext);
+    return null;
+  }
+
+  @Override
+  public boolean conformsToProfile(FHIRPathEngine engine, Object appContext, org.hl7.fhir.r4b.model.Base item, String url)
+      throws FHIRException {
+    ProfileValidator.Verdicts verdicts = appContext instanceof FHIRPathRequestContext
+        ? ((FHIRPathRequestContext) appContext).conformance
+        : null;
+    return WorkerContexts.getR4BProfileValidator().conforms(item, url, verdicts);
+  }
+
+  @Override
+  public org.hl7.fhir.r4b.model.ValueSet resolveValueSet(FHIRPathEngine engine, Object appContext, String url) {
+    // (the worker context's validation support caches the expansion, see the ValueSetMembershipCache)
+    return engine.getWorker().fetchResource(org.hl7.fhir.r4b.model.ValueSet.class, url);
+  }
+}
@@ -0,0 +1,144 @@
+package org.example;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.ParametersUtil;
+
+import java.util.List;
+
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r5.fhirpath.TypeDetails;
+import org.hl7.fhir.r5.fhirpath.FHIRPathEngine.IEvaluationContext;
+import org.hl7.fhir.r5.fhirpath.FHIRPathUtilityClasses.FunctionDetails;
+
+import org.apache.commons.lang3.NotImplementedException;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.exceptions.PathEngineException;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/*
+ * Host services for the r5 FHIRPath engine.
+ * This is shared by all the pooled engines, so holds no request state - that
+ * all comes through the appContext (a FHIRPathRequestContext_R5)
+ */
+public class FHIRPathTestEvaluationServices_R5 implements IEvaluationContext {
+
+  public FHIRPathTestEvaluationServices_R5(FhirContext context) {
+    ctx = context;
+  }
+
+  private FhirContext ctx;
+
+  @Override
+  public List<org.hl7.fhir.r5.model.Base> resolveConstant(FHIRPathEngine engine, Object appContext, String name, boolean beforeContext, boolean explicitConstant)
+      throws PathEngineException {
+    // the engine also asks here about plain names at the start of an expression (e.g. `given`),
+    // those are never variables (even if one has the same name) so fall through to the model
+    if (!explicitConstant)
+      return new java.util.ArrayList<>();
+    if (appContext instanceof FHIRPathRequestContext_R5) {
+      var mapVariables = ((FHIRPathRequestContext_R5) appContext).mapVariables;
+      if (mapVariables.containsKey(name)) {
+        List<org.hl7.fhir.r5.model.Base> result = new java.util.ArrayList<org.hl7.fhir.r5.model.Base>();
+        org.hl7.fhir.r5.model.Base itemValue = mapVariables.get(name);
+        if (itemValue != null)
+          result.add(itemValue);
+        return result;
+      }
+      // return null; // don't return null as the lack of the variable being defined
+      // is an issue
+    }
+    throw new NotImplementedException(
+        "Variable: `%" + name + "` was not provided");
+  }
+
+  @Override
+  public TypeDetails resolveConstantType(FHIRPathEngine engine, Object appContext, String name, boolean explicitConstant) throws PathEngineException {
+    throw new NotImplementedException(
+        "Not done yet (FHIRPathTestEvaluationServices_R5.resolveConstantType), when item is element: " + name);
+  }
+
+  @Override
+  public boolean log(String argument, List<org.hl7.fhir.r5.model.Base> data) {
+    FHIRPathRequestContext_R5 requestContext = FHIRPathRequestContext_R5.current();
+    if (requestContext != null && requestContext.traceToParameter != null) {
+      Parameters.ParametersParameterComponent traceValue = requestContext.traceToParameter.addPart();
+      traceValue.setName("trace");
+      traceValue.setValue(new StringType(argument));
+      IParser parser = requestContext.getJsonParser();
+
+      for (IBase nextOutput : data) {
+        if (nextOutput instanceof IBaseResource) {
+          ParametersUtil.addPartResource(ctx, traceValue, nextOutput.fhirType(), (IBaseResource) nextOutput);
+        } else if (nextOutput instanceof org.hl7.fhir.r5.model.BackboneElement) {
+          Parameters.ParametersParameterComponent backboneValue = traceValue.addPart();
+          backboneValue.setName(nextOutput.fhirType());
+          String backboneJson = parser.encodeToString(nextOutput);
+          backboneValue.addExtension("http://fhir.forms-lab.com/StructureDefinition/json-value",
+              new StringType(backboneJson));
+        } else {
+          // if ( netOutput instanceOf org.hl7.fhir.r5.model.BackboneElement)
+          try {
+            ParametersUtil.addPart(ctx, traceValue, nextOutput.fhirType(), nextOutput);
+          } catch (java.lang.IllegalArgumentException e) {
+            // ParametersUtil.addParameterToParameters(ctx, resultPart,
+            // nextOutput.fhirType());
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public FunctionDetails resolveFunction(FHIRPathEngine engine, String functionName) {
+    throw new NotImplementedException(
+        "Not done yet (FHIRPathTestEvaluationServices_R5.resolveFunction), when item is element (for " + functionName
+            + ")");
+  }
+
+  @Override
+  public TypeDetails checkFunction(FHIRPathEngine engine, Object appContext, String functionName, TypeDetails focus, List<TypeDetails> parameters)
+      throws PathEngineException {
+    throw new NotImplementedException(
+        "Not done yet (FHIRPathTestEvaluationServices_R5.checkFunction), when item is element: " + functionName);
+  }
+
+  @Override
+  public List<org.hl7.fhir.r5.model.Base> executeFunction(FHIRPathEngine engine, Object appContext, List<org.hl7.fhir.r5.model.Base> focus,
+      String functionName, List<List<org.hl7.fhir.r5.model.Base>> parameters) {
+    throw new NotImplementedException(
+        "Not done yet (FHIRPathTestEvaluationServices_R5.executeFunction), when item is element: " + functionName);
+  }
+
+  @Override
+  public org.hl7.fhir.r5.model.Base resolveReference(FHIRPathEngine engine, Object appContext, String url,
+      org.hl7.fhir.r5.model.Base refContext) throws FHIRException {
+    throw new NotImplementedException(
+        "Not done yet (FHIRPathTestEvaluationServices_R5.resolveReference), when item is element");
+  }
+
+  @Override
+  public boolean conformsToProfile(FHIRPathEngine engine, Object appContext, org.hl7.fhir.r5.model.Base item, String url)
+      throws FHIRException {
+    ProfileValidator.Verdicts verdicts = appContext instanceof FHIRPathRequestContext_R5
+        ? ((FHIRPathRequestContext_R5) appContext).conformance
+        : null;
+    return WorkerContexts.getR5ProfileValidator().conforms(item, url, verdicts);
+  }
+
+  @Override
+  public org.hl7.fhir.r5.model.ValueSet resolveValueSet(FHIRPathEngine engine, Object appContext, String url) {
+    // (the worker context's validation support caches the expansion, see the ValueSetMembershipCache)
+    return engine.getWorker().fetchResource(org.hl7.fhir.r5.model.ValueSet.class, url);
+  }
+
+  @Override
+  public boolean paramIsType(String name, int index) {
+    throw new UnsupportedOperationException("Unimplemented method 'paramIsType'");
+  }
+}
@@ -1,15 +1,16 @@
 package org.example;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
 import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 import java.util.Arrays;
 
 import jakarta.servlet.ServletException;
 
+import org.hl7.fhir.instance.model.api.IBaseParameters;
 import org.hl7.fhir.r4b.context.IWorkerContext;
-import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4b.model.BooleanType;
+import org.hl7.fhir.r4b.model.Parameters;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Service;
@@ -21,11 +22,39 @@ public class FhirService extends RestfulServer {
   static final String hapiVersion = "HAPI-8.2.0";
   
   public FhirService() {
-    super(FhirContext.forR4B());
-    IWorkerContext workerContext = new HapiWorkerContext(this.getFhirContext(), new DefaultProfileValidationSupport(this.getFhirContext()));
-    registerProvider(new EvaluatorHAPI(this.getFhirContext(), workerContext));
-    registerProvider(new EvaluatorCQLFacade(this.getFhirContext()));
-    // registerProvider(new EvaluatorIBM(this.getFhirContext(), workerContext));
+    super(WorkerContexts.getR4BContext());
+    IWorkerContext workerContext = WorkerContexts.getR4BWorkerContext();
+    EvaluatorHAPI evaluator = new EvaluatorHAPI(this.getFhirContext(), workerContext);
+    EvaluatorHAPI_R5 evaluatorR5 = new EvaluatorHAPI_R5(WorkerContexts.getR5Context());
+    EvaluatorCQLFacade evaluatorCQL = new EvaluatorCQLFacade(this.getFhirContext());
+    EvaluatorIBM evaluatorIBM = new EvaluatorIBM(this.getFhirContext(), workerContext);
+    registerProvider(evaluator);
+    registerProvider(evaluatorCQL);
+    registerProvider(evaluatorIBM);
+
+    // $fhirpath-compare runs all the engines side by side
+    EvaluatorCompare compare = new EvaluatorCompare(this.getFhirContext());
+    compare.addEngine("hapi-r4b", (resource, context, expression, variables) -> (Parameters) evaluator
+        .evaluate(null, resource, context, expression, variables, new BooleanType(false), null,
+            new BooleanType(true), new BooleanType(false), null, null));
+    compare.addEngine("hapi-r5", (resource, context, expression, variables) -> {
+      org.hl7.fhir.r5.model.Parameters.ParametersParameterComponent r5Variables = null;
+      if (variables != null)
+        r5Variables = EvaluatorCompare.<org.hl7.fhir.r5.model.Parameters>convert(
+            new Parameters().addParameter(variables), WorkerContexts.getR5Context()).getParameterFirstRep();
+      IBaseParameters result = evaluatorR5.evaluate(null,
+          EvaluatorCompare.convert(resource, WorkerContexts.getR5Context()), context, expression, r5Variables,
+          new org.hl7.fhir.r5.model.BooleanType(false), null);
+      return EvaluatorCompare.convert(result, this.getFhirContext());
+    });
+    compare.addEngine("ibm", (resource, context, expression, variables) -> (Parameters) evaluatorIBM
+        .evaluate(null, resource, context, expression, variables, null));
+    compare.addEngine("cql", (resource, context, expression, variables) -> {
+      if (context != null)
+        throw new InvalidRequestException("The CQL engine does not support a context expression");
+      return (Parameters) evaluatorCQL.evaluate(null, expression, resource, null);
+    });
+    registerProvider(compare);
   }
 
   @Override
@@ -1,6 +1,5 @@
 package org.example;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import jakarta.servlet.ServletException;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
@@ -8,13 +7,13 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Service;
 
 
-// @Service
+@Service
 public class FhirService_R5 extends RestfulServer {
 
   public FhirService_R5() {
-    super(FhirContext.forR5());
+    super(WorkerContexts.getR5Context());
 
-    registerProvider(new EvaluatorHAPI_R5(this.getFhirContext()));
+    registerProvider(new EvaluatorHAPI_R5(this.getFhirContext(), WorkerContexts.getR5WorkerContext()));
   }
 
   @Override
@@ -22,7 +21,7 @@ public class FhirService_R5 extends RestfulServer {
     super.initialize();
   }
 
-  // @Bean
+  @Bean
   public ServletRegistrationBean<FhirService_R5> fhirServletR5() {
     return new ServletRegistrationBean<FhirService_R5>(
         new FhirService_R5(), "/fhir5/*");
@@ -0,0 +1,44 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/*
+ * The java implemented FHIRPath functions, by name.
+ * The ServiceLoader scan is only done once (the first time the default registry is used), after
+ * that resolving a function while parsing or executing it is a single map lookup.
+ * Where two functions have the same name the first one found is used.
+ */
+public class FunctionRegistry {
+
+  private static class DefaultRegistry {
+    static final FunctionRegistry INSTANCE = new FunctionRegistry(
+        ServiceLoader.load(FHIRPathFunction.class, FHIRPathFunction.class.getClassLoader()));
+  }
+
+  // the functions listed in META-INF/services/org.example.FHIRPathFunction
+  public static FunctionRegistry getDefault() {
+    return DefaultRegistry.INSTANCE;
+  }
+
+  public FunctionRegistry(Iterable<? extends FHIRPathFunction> functions) {
+    Map<String, FHIRPathFunction> byName = new LinkedHashMap<>();
+    for (FHIRPathFunction function : functions)
+      byName.putIfAbsent(function.getName(), function);
+    _functions = Collections.unmodifiableMap(byName);
+  }
+
+  private final Map<String, FHIRPathFunction> _functions;
+
+  // null if there is no function with this name
+  public FHIRPathFunction get(String name) {
+    return _functions.get(name);
+  }
+
+  public Set<String> getNames() {
+    return _functions.keySet();
+  }
+}
@@ -0,0 +1,137 @@
+package org.example;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.ibm.fhir.model.format.Format;
+import com.ibm.fhir.model.generator.FHIRGenerator;
+import com.ibm.fhir.model.generator.exception.FHIRGeneratorException;
+import com.ibm.fhir.model.parser.FHIRParser;
+import com.ibm.fhir.model.parser.exception.FHIRParserException;
+import com.ibm.fhir.model.resource.Parameters;
+import com.ibm.fhir.model.resource.Resource;
+
+/*
+ * Converts resources between the HAPI and IBM models for a single request.
+ *
+ * Where the request body is available (already read by HAPI) the IBM parser reads the resources
+ * directly from those bytes - the body is parsed once and the `resource` and `variables` parts
+ * picked out of it. Anything else is encoded by HAPI into a reusable byte buffer and parsed from
+ * there (no intermediate Strings).
+ * Converted resources are cached (by identity) for the rest of the request, so the variables are
+ * only converted once however many context nodes they are used with.
+ */
+public class IBMModelConverter {
+
+  public IBMModelConverter(FhirContext context, RequestDetails requestDetails) {
+    _ctx = context;
+    _requestBody = requestDetails != null ? requestDetails.getRequestContentsIfLoaded() : null;
+    _bodyFormat = requestDetails != null ? formatOf(requestDetails.getHeader("Content-Type")) : null;
+  }
+
+  private final FhirContext _ctx;
+  private final byte[] _requestBody;
+  private final Format _bodyFormat;
+  private ca.uhn.fhir.parser.IParser _hapiParser;
+  private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream(8192);
+  private final Map<IBaseResource, Resource> _converted = new IdentityHashMap<>();
+
+  // the parameters from the request body (parsed on first use)
+  private Map<String, Parameters.Parameter> _bodyParameters;
+
+  private static Format formatOf(String contentType) {
+    EncodingEnum encoding = contentType != null ? EncodingEnum.forContentType(contentType) : null;
+    if (encoding == EncodingEnum.JSON)
+      return Format.JSON;
+    if (encoding == EncodingEnum.XML)
+      return Format.XML;
+    return null;
+  }
+
+  // the `resource` parameter
+  public Resource resource(IBaseResource hapiResource) throws FHIRParserException {
+    Parameters.Parameter fromBody = bodyParameter("resource");
+    return convert(hapiResource, fromBody != null ? fromBody.getResource() : null);
+  }
+
+  // a resource valued part of the `variables` parameter
+  public Resource variable(String name, IBaseResource hapiResource) throws FHIRParserException {
+    Resource fromBody = null;
+    Parameters.Parameter variables = bodyParameter("variables");
+    if (variables != null) {
+      for (Parameters.Parameter part : variables.getPart()) {
+        if (part.getName() != null && name.equals(part.getName().getValue())) {
+          fromBody = part.getResource();
+          break;
+        }
+      }
+    }
+    return convert(hapiResource, fromBody);
+  }
+
+  private Resource convert(IBaseResource hapiResource, Resource fromBody) throws FHIRParserException {
+    Resource result = _converted.get(hapiResource);
+    if (result == null) {
+      result = fromBody != null ? fromBody : toIBM(hapiResource);
+      _converted.put(hapiResource, result);
+    }
+    return result;
+  }
+
+  private Resource toIBM(IBaseResource hapiResource) throws FHIRParserException {
+    _buffer.reset();
+    try (Writer writer = new OutputStreamWriter(_buffer, StandardCharsets.UTF_8)) {
+      hapiParser().encodeResourceToWriter(hapiResource, writer);
+    } catch (IOException e) {
+      // can't happen writing to memory
+      throw new IllegalStateException(e);
+    }
+    return FHIRParser.parser(Format.JSON)
+        .parse(new ByteArrayInputStream(_buffer.toByteArray(), 0, _buffer.size()));
+  }
+
+  public IBaseResource toHAPI(Resource ibmResource) throws FHIRGeneratorException {
+    _buffer.reset();
+    FHIRGenerator.generator(Format.JSON).generate(ibmResource, _buffer);
+    return hapiParser().parseResource(new ByteArrayInputStream(_buffer.toByteArray(), 0, _buffer.size()));
+  }
+
+  private ca.uhn.fhir.parser.IParser hapiParser() {
+    if (_hapiParser == null)
+      _hapiParser = _ctx.newJsonParser();
+    return _hapiParser;
+  }
+
+  private Parameters.Parameter bodyParameter(String name) {
+    if (_bodyParameters == null) {
+      _bodyParameters = new HashMap<>();
+      if (_requestBody != null && _bodyFormat != null) {
+        try {
+          Resource body = FHIRParser.parser(_bodyFormat).parse(new ByteArrayInputStream(_requestBody));
+          if (body instanceof Parameters) {
+            for (Parameters.Parameter p : ((Parameters) body).getParameter()) {
+              if (p.getName() != null)
+                _bodyParameters.putIfAbsent(p.getName().getValue(), p);
+            }
+          }
+        } catch (FHIRParserException e) {
+          // not something the IBM parser will accept as is, convert the HAPI resources instead
+        }
+      }
+    }
+    return _bodyParameters.get(name);
+  }
+}
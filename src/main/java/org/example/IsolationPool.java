@@ -0,0 +1,133 @@
+package org.example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/*
+ * A fixed set of threads (with a bounded queue) that work for one engine is run on, so that
+ * a slow or overloaded engine can only tie up its own threads, not the servlet threads that
+ * all the other endpoints need.
+ * call() waits at most the timeout for the result, when the queue is full the request is
+ * turned away straight away (503) rather than waiting.
+ * Metrics: fhirpath.pool.* (executor), fhirpath.pool.calls (outcome = success/error/rejected/timeout),
+ * timing the work for success/error, the wait for timeout (a rejected call takes no time)
+ */
+public class IsolationPool {
+
+  public IsolationPool(String name, int threads, int queueSize, long timeoutMillis) {
+    _name = name;
+    _timeoutMillis = timeoutMillis;
+    AtomicInteger threadCount = new AtomicInteger();
+    _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueSize), r -> {
+          Thread t = new Thread(r, name + "-worker-" + threadCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    ExecutorServiceMetrics.monitor(Metrics.globalRegistry, _executor, "fhirpath.pool." + name, Tags.empty());
+    _calls = calls(name, "success");
+    _errors = calls(name, "error");
+    _rejected = calls(name, "rejected");
+    _timeouts = calls(name, "timeout");
+  }
+
+  private static Timer calls(String name, String outcome) {
+    return Timer.builder("fhirpath.pool.calls").tags("pool", name, "outcome", outcome)
+        .register(Metrics.globalRegistry);
+  }
+
+  private final String _name;
+  private final long _timeoutMillis;
+  private final ThreadPoolExecutor _executor;
+  private final Timer _calls;
+  private final Timer _errors;
+  private final Timer _rejected;
+  private final Timer _timeouts;
+
+  public long getTimeoutMillis() {
+    return _timeoutMillis;
+  }
+
+  /*
+   * Run the work on the pool, waiting (up to the timeout) for the result.
+   * Exceptions thrown by the work are re-thrown as is (the checked ones are wrapped in an
+   * InvalidRequestException)
+   */
+  public <T> T call(Callable<T> work) {
+    return call(work, _timeoutMillis);
+  }
+
+  // the same, with a timeout of the caller's own
+  public <T> T call(Callable<T> work, long timeoutMillis) {
+    return get(submit(work), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), timeoutMillis);
+  }
+
+  // queue the work (to collect the result with get), rejecting it if the queue is full
+  public <T> Future<T> submit(Callable<T> work) {
+    long start = System.nanoTime();
+    try {
+      return _executor.submit(() -> {
+        try {
+          T result = work.call();
+          _calls.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+          return result;
+        } catch (Exception e) {
+          // (work interrupted after timing out has already been counted)
+          if (!Thread.currentThread().isInterrupted() && !(e instanceof InterruptedException))
+            _errors.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+          throw e;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      _rejected.record(0, TimeUnit.NANOSECONDS);
+      throw new UnclassifiedServerFailureException(503,
+          "The " + _name + " engine is too busy to take this request, please try again later");
+    }
+  }
+
+  // give up on submitted work that is taking too long (for callers not waiting in get)
+  public void timeout(Future<?> future, long timeoutMillis) {
+    future.cancel(true);
+    _timeouts.record(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // wait for submitted work until the deadline (System.nanoTime based)
+  public <T> T get(Future<T> future, long deadlineNanos) {
+    return get(future, deadlineNanos, _timeoutMillis);
+  }
+
+  private <T> T get(Future<T> future, long deadlineNanos, long timeoutMillis) {
+    try {
+      return future.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      // (only stops the work if the engine checks for interrupts)
+      future.cancel(true);
+      _timeouts.record(timeoutMillis, TimeUnit.MILLISECONDS);
+      throw new UnclassifiedServerFailureException(503,
+          "The " + _name + " engine did not complete the request within " + timeoutMillis + "ms");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InvalidRequestException("Evaluation was interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new InvalidRequestException(e.getCause().getMessage());
+    }
+  }
+}
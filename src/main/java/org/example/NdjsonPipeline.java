@@ -0,0 +1,146 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/*
+ * Streams NDJSON content through a processor a line at a time, writing one output line
+ * for each (non blank) input line, in the same order as the input.
+ * Only a small window of lines is ever held in memory, so the size of the input doesn't
+ * matter. In parallel mode the lines are processed on a shared pool sized to the cores.
+ * (Other item sources/outputs can use the same pipeline, e.g. the entries of a Bundle)
+ */
+public class NdjsonPipeline {
+
+  public interface ItemSource<T> {
+    // the next item, or null when there are no more
+    T next() throws IOException;
+  }
+
+  public interface ItemProcessor<T> {
+    // process the item from the input, returning the json to output
+    String process(long index, T item) throws Exception;
+  }
+
+  public interface LineProcessor extends ItemProcessor<String> {
+  }
+
+  static final JsonFactory _jsonFactory = new JsonFactory();
+  static final int WORKERS = Runtime.getRuntime().availableProcessors();
+  static final int WINDOW_SIZE = WORKERS * 4;
+
+  private static final AtomicInteger _threadCount = new AtomicInteger();
+  private static final ExecutorService _workers = Executors.newFixedThreadPool(WORKERS, r -> {
+    Thread t = new Thread(r, "ndjson-worker-" + _threadCount.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  });
+
+  /*
+   * Returns the number of lines processed
+   */
+  public static long run(BufferedReader reader, Writer writer, boolean parallel, LineProcessor processor)
+      throws IOException {
+    long count = run(() -> nextLine(reader), writer, "\n", parallel, processor);
+    if (count > 0)
+      writer.write('\n');
+    writer.flush();
+    return count;
+  }
+
+  /*
+   * Process all the items from the source, writing the outputs (in the source order) with the
+   * separator between them. Returns the number of items processed
+   */
+  public static <T> long run(ItemSource<T> source, Writer writer, String separator, boolean parallel,
+      ItemProcessor<T> processor) throws IOException {
+    long index = 0;
+    T item;
+    if (!parallel) {
+      while ((item = source.next()) != null) {
+        writeItem(writer, separator, index, processItem(processor, index, item));
+        index++;
+      }
+      return index;
+    }
+
+    // keep a bounded window of outstanding work, writing out the oldest as the window fills
+    ArrayDeque<Future<String>> window = new ArrayDeque<>();
+    long written = 0;
+    try {
+      while ((item = source.next()) != null) {
+        final long itemIndex = index++;
+        final T itemContent = item;
+        window.add(_workers.submit(() -> processItem(processor, itemIndex, itemContent)));
+        if (window.size() >= WINDOW_SIZE)
+          writeItem(writer, separator, written++, take(window));
+      }
+      while (!window.isEmpty())
+        writeItem(writer, separator, written++, take(window));
+    } finally {
+      // the client has gone away (or the input failed), don't leave work queued
+      for (Future<String> f : window)
+        f.cancel(true);
+    }
+    return index;
+  }
+
+  // the next non blank line
+  static String nextLine(BufferedReader reader) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.isBlank())
+        return line;
+    }
+    return null;
+  }
+
+  private static String take(ArrayDeque<Future<String>> window) throws IOException {
+    try {
+      return window.poll().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while processing NDJSON", e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static <T> String processItem(ItemProcessor<T> processor, long index, T item) {
+    try {
+      return processor.process(index, item);
+    } catch (Exception e) {
+      return errorLine(index, e.getMessage());
+    }
+  }
+
+  private static void writeItem(Writer writer, String separator, long index, String content) throws IOException {
+    if (index > 0)
+      writer.write(separator);
+    writer.write(content);
+  }
+
+  public static String errorLine(long index, String message) {
+    StringWriter sw = new StringWriter();
+    try (JsonGenerator gen = _jsonFactory.createGenerator(sw)) {
+      gen.writeStartObject();
+      gen.writeNumberField("index", index);
+      gen.writeStringField("error", message != null ? message : "unknown error");
+      gen.writeEndObject();
+    } catch (IOException e) {
+      // can't happen writing to a string
+    }
+    return sw.toString();
+  }
+}
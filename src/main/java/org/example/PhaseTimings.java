@@ -0,0 +1,91 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.ParametersUtil;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import org.hl7.fhir.instance.model.api.IBase;
+
+/*
+ * Accumulates the time spent in each phase of a single request (parsing, debug tree generation,
+ * context evaluation, expression evaluation, encoding the results...).
+ * When the request completes the phases are published to micrometer as the `fhirpath.phase`
+ * timer (with a histogram) tagged with the engine, operation and phase, and can optionally be
+ * echoed into the response.
+ */
+public class PhaseTimings {
+
+  static final String METRIC_NAME = "fhirpath.phase";
+
+  public PhaseTimings(String engine, String operation) {
+    _engine = engine;
+    _operation = operation;
+    _start = System.nanoTime();
+  }
+
+  private final String _engine;
+  private final String _operation;
+  private final long _start;
+
+  // in the order the phases were first recorded (context nodes can record from several threads)
+  private final Map<String, LongAdder> _phases = Collections.synchronizedMap(new LinkedHashMap<>());
+
+  /*
+   * Add the time since startNanos to the phase.
+   * Returns the current time so that consecutive phases can be chained.
+   */
+  public long record(String phase, long startNanos) {
+    long now = System.nanoTime();
+    recordNanos(phase, now - startNanos);
+    return now;
+  }
+
+  // add time already measured (e.g. on another thread) to the phase
+  public void recordNanos(String phase, long nanos) {
+    _phases.computeIfAbsent(phase, (key) -> new LongAdder()).add(nanos);
+  }
+
+  public long getNanos(String phase) {
+    LongAdder nanos = _phases.get(phase);
+    return nanos != null ? nanos.sum() : 0;
+  }
+
+  /*
+   * Publish the phases (and the total for the request) to micrometer, and if a part is
+   * provided, add a `timing` part to it with the milliseconds spent in each phase
+   */
+  public void complete(FhirContext ctx, IBase paramsPart) {
+    long total = System.nanoTime() - _start;
+    IBase timingPart = paramsPart != null ? ParametersUtil.createPart(ctx, paramsPart, "timing") : null;
+    synchronized (_phases) {
+      for (Map.Entry<String, LongAdder> phase : _phases.entrySet()) {
+        long nanos = phase.getValue().sum();
+        timer(phase.getKey()).record(nanos, TimeUnit.NANOSECONDS);
+        if (timingPart != null)
+          ParametersUtil.addPartDecimal(ctx, timingPart, phase.getKey(), nanos / 1_000_000.0);
+      }
+    }
+    timer("total").record(total, TimeUnit.NANOSECONDS);
+    if (timingPart != null)
+      ParametersUtil.addPartDecimal(ctx, timingPart, "total", total / 1_000_000.0);
+  }
+
+  private Timer timer(String phase) {
+    // the registry returns the existing timer once it has been registered
+    return Timer.builder(METRIC_NAME)
+        .description("Time spent in each phase of the fhirpath/transform operations")
+        .tag("engine", _engine)
+        .tag("operation", _operation)
+        .tag("phase", phase)
+        .publishPercentileHistogram()
+        .register(Metrics.globalRegistry);
+  }
+}
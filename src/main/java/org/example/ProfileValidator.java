@@ -0,0 +1,199 @@
+package org.example;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationOptions;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/*
+ * Checks resources against profiles (conformsTo()) with one validator per FHIR version, shared
+ * by all requests (creating a validator loads and converts the core definitions, which takes
+ * seconds, after that it is thread safe).
+ * Each profile is fetched (and its snapshot generated, if it only has a differential) once and
+ * cached by url (fhirpath.profileCache.maxSize), the validator is given the cached snapshot.
+ * A resource of a type that isn't the profile's type (or derived from it, for the abstract types
+ * like DomainResource) doesn't conform, without validating it,
+ * and the verdicts for each resource/profile are kept for the rest of the request (Verdicts), so
+ * something like entry.resource.where(conformsTo(...)) validates each matching resource once.
+ */
+public class ProfileValidator {
+
+  static final long DEFAULT_MAX_SIZE = Long.getLong("fhirpath.profileCache.maxSize", 500);
+
+  public ProfileValidator(FhirContext context, IValidationSupport validationSupport, String fhirVersion) {
+    this(context, validationSupport, fhirVersion, DEFAULT_MAX_SIZE);
+  }
+
+  public ProfileValidator(FhirContext context, IValidationSupport validationSupport, String fhirVersion,
+      long maxSize) {
+    _ctx = context;
+    _terser = context.newTerser();
+    _support = validationSupport;
+    _snapshots = new SnapshotGeneratingValidationSupport(context);
+    _profiles = Caffeine.newBuilder()
+        .maximumSize(maxSize)
+        .recordStats()
+        .build();
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, _profiles, "fhirpath.profiles",
+        Tags.of("fhirVersion", fhirVersion));
+    _validations = Counter.builder("fhirpath.profile.validations")
+        .description("Resources validated against a profile for conformsTo()")
+        .tag("fhirVersion", fhirVersion)
+        .register(Metrics.globalRegistry);
+
+    _validator = context.newValidator();
+    _validator.setValidateAgainstStandardSchema(false);
+    _validator.setValidateAgainstStandardSchematron(false);
+    _validator.registerValidatorModule(
+        new FhirInstanceValidator(new ValidationSupportChain(new CachedProfiles(), validationSupport, _snapshots)));
+  }
+
+  private final FhirContext _ctx;
+  private final FhirTerser _terser;
+  private final IValidationSupport _support;
+  private final SnapshotGeneratingValidationSupport _snapshots;
+  private final Cache<String, Profile> _profiles;
+  private final Counter _validations;
+  private final FhirValidator _validator;
+  // the types each resource type is derived from
+  private final Map<String, Set<String>> _ancestors = new ConcurrentHashMap<>();
+
+  // a StructureDefinition with its snapshot (null if there is no profile with the url)
+  private static class Profile {
+    Profile(IBaseResource structureDefinition, String type) {
+      this.structureDefinition = structureDefinition;
+      this.type = type;
+    }
+
+    final IBaseResource structureDefinition;
+    final String type;
+  }
+
+  // gives the validator the profiles from the cache (those already looked up by conforms())
+  private class CachedProfiles implements IValidationSupport {
+    @Override
+    public FhirContext getFhirContext() {
+      return _ctx;
+    }
+
+    @Override
+    public String getName() {
+      return "ProfileValidator";
+    }
+
+    @Override
+    public IBaseResource fetchStructureDefinition(String url) {
+      Profile profile = _profiles.getIfPresent(url);
+      return profile != null ? profile.structureDefinition : null;
+    }
+  }
+
+  /*
+   * The conformsTo() verdicts for one request, by resource (identity) and profile
+   */
+  public static class Verdicts {
+    private final Map<Key, Boolean> _verdicts = new ConcurrentHashMap<>();
+
+    private static class Key {
+      Key(Object item, String url) {
+        this.item = item;
+        this.url = url;
+      }
+
+      final Object item;
+      final String url;
+
+      @Override
+      public boolean equals(Object other) {
+        return other instanceof Key && ((Key) other).item == item && ((Key) other).url.equals(url);
+      }
+
+      @Override
+      public int hashCode() {
+        return System.identityHashCode(item) * 31 + url.hashCode();
+      }
+    }
+  }
+
+  /*
+   * Does this resource conform to the profile, unknown profiles (and items that aren't resources)
+   * are an error. The verdicts may be null (nothing is kept).
+   */
+  public boolean conforms(IBase item, String url, Verdicts verdicts) throws FHIRException {
+    Profile profile = _profiles.get(url, this::load);
+    if (profile.structureDefinition == null)
+      throw new FHIRException("unknown profile " + url);
+    if (!(item instanceof IBaseResource))
+      throw new FHIRException("conformsTo() can only check resources, found " + item.fhirType());
+    String type = _ctx.getResourceType((IBaseResource) item);
+    if (!type.equals(profile.type) && !_ancestors.computeIfAbsent(type, this::ancestors).contains(profile.type))
+      return false;
+
+    Verdicts.Key key = verdicts != null ? new Verdicts.Key(item, url) : null;
+    Boolean verdict = key != null ? verdicts._verdicts.get(key) : null;
+    if (verdict == null) {
+      _validations.increment();
+      // (the validator fails a resource of any other type than the profile's, so for an abstract type's
+      // profile it is checked against its own type, which includes the abstract type's rules, but not
+      // any constraints the profile adds)
+      ValidationOptions options = new ValidationOptions();
+      if (type.equals(profile.type))
+        options.addProfile(url);
+      verdict = _validator.validateWithResult((IBaseResource) item, options).isSuccessful();
+      if (key != null)
+        verdicts._verdicts.put(key, verdict);
+    }
+    return verdict;
+  }
+
+  private Profile load(String url) {
+    IBaseResource structureDefinition = _support.fetchStructureDefinition(url);
+    if (structureDefinition == null)
+      return new Profile(null, null);
+    if (_terser.getValues(structureDefinition, "snapshot.element").isEmpty()) {
+      IBaseResource snapshot = _snapshots.generateSnapshot(new ValidationSupportContext(_support),
+          structureDefinition, url, null, _terser.getSinglePrimitiveValueOrNull(structureDefinition, "name"));
+      if (snapshot != null)
+        structureDefinition = snapshot;
+    }
+    return new Profile(structureDefinition, _terser.getSinglePrimitiveValueOrNull(structureDefinition, "type"));
+  }
+
+  private Set<String> ancestors(String type) {
+    Set<String> ancestors = new HashSet<>();
+    IBaseResource definition = _support.fetchStructureDefinition("http://hl7.org/fhir/StructureDefinition/" + type);
+    while (definition != null) {
+      String base = _terser.getSinglePrimitiveValueOrNull(definition, "baseDefinition");
+      definition = base != null ? _support.fetchStructureDefinition(base) : null;
+      if (definition != null && !ancestors.add(_terser.getSinglePrimitiveValueOrNull(definition, "type")))
+        break;
+    }
+    return ancestors;
+  }
+
+  public long size() {
+    return _profiles.estimatedSize();
+  }
+}
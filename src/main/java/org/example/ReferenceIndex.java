@@ -0,0 +1,144 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4b.model.Base;
+
+/*
+ * The resources that resolve() can reach in a request's input resource: the entries of a Bundle
+ * (by fullUrl and Type/id) and the contained resources (by #id), indexed once per request on the
+ * first resolve() rather than scanning the Bundle for every reference.
+ * A #id is local to the resource that contains the reference, so for the Bundle entries with
+ * contained resources each of their #id references is mapped (by identity) to that entry's
+ * contained resources, any other #id is looked up in the input resource's own contained.
+ * Works over both the HAPI model and the element model (only uses the generic Base accessors).
+ * Absolute references only match a fullUrl, relative ones match Type/id (any version is ignored).
+ */
+public class ReferenceIndex {
+
+  public ReferenceIndex(Base root) {
+    _root = root;
+  }
+
+  private final Base _root;
+  private volatile Map<String, Base> _resources;
+  // the #id references in the Bundle entries, to the contained resources of their entry
+  private Map<Base, Map<String, Base>> _localReferences;
+
+  public Base resolve(String url) {
+    return resolve(url, null);
+  }
+
+  // refContext is the Reference (or other element) holding the url, null if not known
+  public Base resolve(String url, Base refContext) {
+    if (url == null)
+      return null;
+    Map<String, Base> resources = _resources;
+    if (resources == null)
+      resources = build();
+    if (refContext != null && url.startsWith("#")) {
+      Map<String, Base> contained = _localReferences.get(refContext);
+      if (contained != null)
+        return contained.get(url);
+    }
+    int history = url.indexOf("/_history/");
+    return resources.get(history > 0 ? url.substring(0, history) : url);
+  }
+
+  // (context nodes can be evaluated in parallel, so only one of them builds it)
+  private synchronized Map<String, Base> build() {
+    if (_resources != null)
+      return _resources;
+    Map<String, Base> resources = new HashMap<>();
+    Map<Base, Map<String, Base>> localReferences = new IdentityHashMap<>();
+    if (_root != null) {
+      addResource(resources, _root);
+      if ("Bundle".equals(_root.fhirType())) {
+        for (Base entry : values(_root, "entry")) {
+          List<Base> resource = values(entry, "resource");
+          if (resource.isEmpty())
+            continue;
+          List<Base> fullUrl = values(entry, "fullUrl");
+          if (!fullUrl.isEmpty() && fullUrl.get(0).primitiveValue() != null)
+            resources.putIfAbsent(fullUrl.get(0).primitiveValue(), resource.get(0));
+          String id = idOf(resource.get(0));
+          if (id != null)
+            resources.putIfAbsent(resource.get(0).fhirType() + "/" + id, resource.get(0));
+          addLocalReferences(localReferences, resource.get(0));
+        }
+      }
+    }
+    _localReferences = localReferences;
+    _resources = resources;
+    return resources;
+  }
+
+  private static void addLocalReferences(Map<Base, Map<String, Base>> localReferences, Base resource) {
+    Map<String, Base> contained = new HashMap<>();
+    for (Base item : values(resource, "contained")) {
+      String containedId = idOf(item);
+      if (containedId != null)
+        contained.putIfAbsent("#" + containedId, item);
+    }
+    // (only the entries with contained resources need walking, the references in the contained
+    // resources are local to the entry too)
+    if (!contained.isEmpty())
+      addLocalReferences(localReferences, resource, contained);
+  }
+
+  private static void addLocalReferences(Map<Base, Map<String, Base>> localReferences, Base base,
+      Map<String, Base> contained) {
+    if ("Reference".equals(base.fhirType())) {
+      List<Base> reference = values(base, "reference");
+      if (!reference.isEmpty() && reference.get(0).primitiveValue() != null
+          && reference.get(0).primitiveValue().startsWith("#"))
+        localReferences.put(base, contained);
+    }
+    for (Base child : children(base))
+      addLocalReferences(localReferences, child, contained);
+  }
+
+  private static void addResource(Map<String, Base> resources, Base resource) {
+    String id = idOf(resource);
+    if (id != null)
+      resources.putIfAbsent(resource.fhirType() + "/" + id, resource);
+    // (only the input's own contained resources, #id is local to the resource containing it)
+    for (Base contained : values(resource, "contained")) {
+      String containedId = idOf(contained);
+      if (containedId != null)
+        resources.putIfAbsent("#" + containedId, contained);
+    }
+  }
+
+  private static String idOf(Base resource) {
+    // (the HAPI parser sets the id with the type and version, and contained ids with the #)
+    String id;
+    if (resource instanceof IBaseResource) {
+      id = ((IBaseResource) resource).getIdElement().getIdPart();
+    } else {
+      List<Base> ids = values(resource, "id");
+      id = ids.isEmpty() ? null : ids.get(0).primitiveValue();
+    }
+    return id != null && id.startsWith("#") ? id.substring(1) : id;
+  }
+
+  private static List<Base> children(Base base) {
+    if (base instanceof org.hl7.fhir.r4b.elementmodel.Element)
+      return new java.util.ArrayList<>(((org.hl7.fhir.r4b.elementmodel.Element) base).getChildren());
+    List<Base> children = new java.util.ArrayList<>();
+    for (org.hl7.fhir.r4b.model.Property property : base.children())
+      if (property.hasValues())
+        children.addAll(property.getValues());
+    return children;
+  }
+
+  private static List<Base> values(Base base, String name) {
+    Base[] values = base.listChildrenByName(name, false);
+    return values != null ? Arrays.asList(values) : List.of();
+  }
+}
@@ -0,0 +1,83 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4b.fhirpath.ExpressionNode;
+import org.hl7.fhir.r4b.fhirpath.ExpressionNode.CollectionStatus;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathEngine;
+import org.hl7.fhir.r4b.fhirpath.FHIRPathUtilityClasses.FunctionDetails;
+import org.hl7.fhir.r4b.fhirpath.TypeDetails;
+import org.hl7.fhir.r4b.model.Base;
+
+/*
+ * resolve() over the request's ReferenceIndex.
+ * The engine's own resolve() looks up every #id in the contained resources of the resource the
+ * evaluation started from (without asking the host services), so a #id in a Bundle entry never
+ * finds the entry's contained resources. The parsed expressions have their resolve() calls swapped
+ * for this one (replaceBuiltIn), which passes the reference itself to the index so a #id is found in
+ * the resource that contains it.
+ */
+public class ResolveFunction implements FHIRPathFunction {
+
+  @Override
+  public String getName() {
+    return "resolve";
+  }
+
+  @Override
+  public FunctionDetails getDetails() {
+    return new FunctionDetails("The resources the references in the input collection refer to", 0, 0);
+  }
+
+  @Override
+  public TypeDetails check(FHIRPathEngine engine, Object appContext, TypeDetails focus,
+      List<TypeDetails> parameters) {
+    return new TypeDetails(CollectionStatus.ORDERED, "DomainResource");
+  }
+
+  @Override
+  public List<Base> execute(FHIRPathEngine engine, Object appContext, List<Base> focus,
+      List<List<Base>> parameters) {
+    List<Base> result = new ArrayList<>();
+    if (!(appContext instanceof FHIRPathRequestContext requestContext) || requestContext.references == null)
+      return result;
+    for (Base item : focus) {
+      Base resource = requestContext.references.resolve(referenceOf(item), item);
+      if (resource != null)
+        result.add(resource);
+    }
+    return result;
+  }
+
+  // (the same as the engine, a Reference's reference or the value of a canonical/uri/string)
+  private static String referenceOf(Base item) {
+    if ("Reference".equals(item.fhirType())) {
+      Base[] reference = item.listChildrenByName("reference", false);
+      return reference != null && reference.length > 0 ? reference[0].primitiveValue() : null;
+    }
+    return item.hasPrimitiveValue() ? item.primitiveValue() : null;
+  }
+
+  /*
+   * Swap the engine's resolve() for this one throughout the parsed expression (in place).
+   */
+  public static ExpressionNode replaceBuiltIn(ExpressionNode node) {
+    if (node == null)
+      return null;
+    if (node.getKind() == ExpressionNode.Kind.Function && node.getFunction() == ExpressionNode.Function.Resolve)
+      node.setFunction(ExpressionNode.Function.Custom);
+    if (node.getParameters() != null)
+      for (ExpressionNode parameter : node.getParameters())
+        replaceBuiltIn(parameter);
+    replaceBuiltIn(node.getInner());
+    replaceBuiltIn(node.getGroup());
+    replaceBuiltIn(node.getOpNext());
+    return node;
+  }
+
+  // was this node the engine's resolve() (for the debug trees, which still show it as resolve)
+  public static boolean isReplaced(ExpressionNode node) {
+    return node.getFunction() == ExpressionNode.Function.Custom && "resolve".equals(node.getName());
+  }
+}
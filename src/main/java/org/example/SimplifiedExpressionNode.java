@@ -85,7 +85,9 @@ public class SimplifiedExpressionNode implements ISimplifiedExpressionNode {
         jsonNode.kind = node.getKind().toString();
         if (node.getKind() == org.hl7.fhir.r4b.fhirpath.ExpressionNode.Kind.Name
                 || node.getKind() == org.hl7.fhir.r4b.fhirpath.ExpressionNode.Kind.Function
-                        && (node.getFunction() == null || node.getFunction().toCode() == null))
+                        && (node.getFunction() == null || node.getFunction().toCode() == null
+                                || node.getFunction() == org.hl7.fhir.r4b.fhirpath.ExpressionNode.Function.Custom
+                                        && !ResolveFunction.isReplaced(node)))
             jsonNode.name = node.getName();
         var constVal = ConvertConstantToString(node.getConstant());
         if (constVal != null) {
@@ -93,7 +95,7 @@ public class SimplifiedExpressionNode implements ISimplifiedExpressionNode {
             jsonNode.types = constVal.type;
         }
         if (node.getFunction() != null)
-            jsonNode.function = node.getFunction().toCode();
+            jsonNode.function = ResolveFunction.isReplaced(node) ? "resolve" : node.getFunction().toCode();
 
         var sp = node.getParameters();
         if (sp != null) {
@@ -0,0 +1,141 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import org.hl7.fhir.r4b.model.StructureMap;
+
+/*
+ * Bounded cache of parsed StructureMaps, keyed by a hash of the map text.
+ * Each parsed map is also registered under its canonical url, so that later requests can
+ * refer to the map by url rather than sending the map text again.
+ *
+ * The transform stores resolved groups and parsed expressions on the map (userData) as it
+ * runs, so a parsed map can't be shared by concurrent transforms (and a copy() loses the
+ * parsed expressions). Instead each entry keeps the parsed instances that are not in use,
+ * a transform leases one (parsing another only if they are all busy) and returns it when done.
+ */
+public class StructureMapCache {
+
+  static final long DEFAULT_MAX_SIZE = Long.getLong("fhirpath.structureMapCache.maxSize", 500);
+
+  // the most parsed instances of a map that are held idle
+  static final int MAX_IDLE_INSTANCES = Runtime.getRuntime().availableProcessors() * 2;
+
+  public StructureMapCache(String fhirVersion) {
+    this(fhirVersion, DEFAULT_MAX_SIZE);
+  }
+
+  public StructureMapCache(String fhirVersion, long maxSize) {
+    _byHash = Caffeine.newBuilder()
+        .maximumSize(maxSize)
+        .recordStats()
+        .build();
+    _byUrl = Caffeine.newBuilder()
+        .maximumSize(maxSize)
+        .recordStats()
+        .build();
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, _byHash, "fhirpath.structuremaps",
+        Tags.of("fhirVersion", fhirVersion, "key", "content"));
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, _byUrl, "fhirpath.structuremaps",
+        Tags.of("fhirVersion", fhirVersion, "key", "url"));
+  }
+
+  private final Cache<String, Entry> _byHash;
+  private final Cache<String, Entry> _byUrl;
+
+  private static class Entry {
+    Entry(String mapText, StructureMap map) {
+      this.mapText = mapText;
+      idle.offer(map);
+      idleCount.incrementAndGet();
+    }
+
+    final String mapText;
+    final ConcurrentLinkedQueue<StructureMap> idle = new ConcurrentLinkedQueue<>();
+    final AtomicInteger idleCount = new AtomicInteger();
+  }
+
+  /*
+   * A parsed map for the exclusive use of one transform, close() to return it to the cache
+   */
+  public static class Lease implements AutoCloseable {
+    private Lease(Entry entry, StructureMap map) {
+      _entry = entry;
+      _map = map;
+    }
+
+    private final Entry _entry;
+    private final StructureMap _map;
+
+    public StructureMap getMap() {
+      return _map;
+    }
+
+    @Override
+    public void close() {
+      if (_entry.idleCount.incrementAndGet() <= MAX_IDLE_INSTANCES)
+        _entry.idle.offer(_map);
+      else
+        _entry.idleCount.decrementAndGet();
+    }
+  }
+
+  /*
+   * Lease a parsed map for this map text, parsing (and caching) it on a miss.
+   * Parse failures propagate to the caller and are not cached.
+   */
+  public Lease acquire(String mapText, Function<String, StructureMap> parser) {
+    Entry entry = _byHash.get(hash(mapText), (key) -> new Entry(mapText, parser.apply(mapText)));
+    Lease lease = lease(entry, parser);
+    // (re)register the url, the most recently used content for a url wins
+    if (lease.getMap().hasUrl())
+      _byUrl.put(lease.getMap().getUrl(), entry);
+    return lease;
+  }
+
+  // lease the most recent map registered with this canonical url (or null if not known)
+  public Lease acquireByUrl(String url, Function<String, StructureMap> parser) {
+    Entry entry = _byUrl.getIfPresent(url);
+    return entry != null ? lease(entry, parser) : null;
+  }
+
+  private Lease lease(Entry entry, Function<String, StructureMap> parser) {
+    StructureMap map = entry.idle.poll();
+    if (map != null)
+      entry.idleCount.decrementAndGet();
+    else
+      map = parser.apply(entry.mapText);
+    return new Lease(entry, map);
+  }
+
+  public long size() {
+    return _byHash.estimatedSize();
+  }
+
+  public void clear() {
+    _byHash.invalidateAll();
+    _byUrl.invalidateAll();
+  }
+
+  private static String hash(String mapText) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(mapText.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
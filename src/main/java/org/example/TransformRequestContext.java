@@ -0,0 +1,34 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4b.model.Base;
+import org.hl7.fhir.r4b.model.Parameters;
+
+/*
+ * The per-request state for a $transform on the (shared) StructureMapUtilities.
+ * This is passed through the transform as the appInfo so that the transformer services
+ * don't need to hold any request specific data.
+ */
+public class TransformRequestContext {
+
+  public List<Base> outputs = new ArrayList<>();
+  public Parameters.ParametersParameterComponent traceToParameter;
+
+  // The transformer's log callback doesn't receive the appInfo, so the context is also
+  // bound to the transforming thread for the duration of a transform
+  private static final ThreadLocal<TransformRequestContext> _current = new ThreadLocal<>();
+
+  public static TransformRequestContext current() {
+    return _current.get();
+  }
+
+  public void bind() {
+    _current.set(this);
+  }
+
+  public void unbind() {
+    _current.remove();
+  }
+}
@@ -0,0 +1,167 @@
+package org.example;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import ca.uhn.fhir.util.FhirTerser;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/*
+ * Validation support that answers "is this code in this value set" (memberOf(), and anything else
+ * the worker context validates against a value set) from a hash set of the codes in the value
+ * set's expansion, rather than expanding the value set for every code checked.
+ * Put it first in the ValidationSupportChain, the expansion is done by the rest of the chain.
+ *
+ * Each expansion is compiled to the set of system|code (and the bare codes, for codes checked
+ * without a system) and cached by value set url and version. The cache is bounded by the total
+ * number of codes held (fhirpath.valueSetCache.maxCodes), and entries not used for
+ * fhirpath.valueSetCache.expireMinutes are dropped.
+ * Value sets that can't be expanded (or expand to more than fhirpath.valueSetCache.maxExpansion
+ * codes) are remembered as such, and their codes are left to the rest of the chain to validate.
+ */
+public class ValueSetMembershipCache implements IValidationSupport {
+
+  static final long DEFAULT_MAX_CODES = Long.getLong("fhirpath.valueSetCache.maxCodes", 1_000_000);
+  static final long EXPIRE_MINUTES = Long.getLong("fhirpath.valueSetCache.expireMinutes", 60);
+  static final int MAX_EXPANSION = Integer.getInteger("fhirpath.valueSetCache.maxExpansion", 100_000);
+
+  public ValueSetMembershipCache(FhirContext context, String fhirVersion) {
+    this(context, fhirVersion, DEFAULT_MAX_CODES);
+  }
+
+  public ValueSetMembershipCache(FhirContext context, String fhirVersion, long maxCodes) {
+    _ctx = context;
+    _terser = context.newTerser();
+    _cache = Caffeine.newBuilder()
+        .maximumWeight(maxCodes)
+        .weigher((String key, Codes codes) -> codes.size())
+        .expireAfterAccess(EXPIRE_MINUTES, TimeUnit.MINUTES)
+        .recordStats()
+        .build();
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, _cache, "fhirpath.valuesets",
+        Tags.of("fhirVersion", fhirVersion));
+  }
+
+  private final FhirContext _ctx;
+  private final FhirTerser _terser;
+  private final Cache<String, Codes> _cache;
+
+  // the codes in an expansion (null sets if it couldn't be expanded)
+  private static class Codes {
+    Codes(Set<String> codings, Set<String> codes) {
+      this.codings = codings;
+      this.codes = codes;
+    }
+
+    final Set<String> codings;
+    final Set<String> codes;
+
+    boolean isExpanded() {
+      return codings != null;
+    }
+
+    int size() {
+      return isExpanded() ? codings.size() + 1 : 1;
+    }
+
+    boolean contains(String system, String code) {
+      if (StringUtils.isBlank(system))
+        return codes.contains(code);
+      return codings.contains(system + "|" + code);
+    }
+  }
+
+  @Override
+  public FhirContext getFhirContext() {
+    return _ctx;
+  }
+
+  @Override
+  public String getName() {
+    return "ValueSetMembershipCache";
+  }
+
+  @Override
+  public boolean isValueSetSupported(ValidationSupportContext context, String valueSetUrl) {
+    return context.getRootValidationSupport().fetchValueSet(valueSetUrl) != null;
+  }
+
+  @Override
+  public CodeValidationResult validateCode(ValidationSupportContext context, ConceptValidationOptions options,
+      String system, String code, String display, String valueSetUrl) {
+    if (StringUtils.isBlank(valueSetUrl))
+      return null;
+    IBaseResource valueSet = context.getRootValidationSupport().fetchValueSet(valueSetUrl);
+    if (valueSet == null)
+      return null;
+    return validateCodeInValueSet(context, options, system, code, display, valueSet);
+  }
+
+  @Override
+  public CodeValidationResult validateCodeInValueSet(ValidationSupportContext context,
+      ConceptValidationOptions options, String system, String code, String display, IBaseResource valueSet) {
+    String url = _terser.getSinglePrimitiveValueOrNull(valueSet, "url");
+    if (StringUtils.isBlank(url) || StringUtils.isBlank(code))
+      return null;
+    String version = _terser.getSinglePrimitiveValueOrNull(valueSet, "version");
+    Codes codes = _cache.get(version != null ? url + "|" + version : url,
+        (key) -> compile(context, valueSet));
+    if (!codes.isExpanded())
+      return null;
+    if (codes.contains(system, code))
+      return new CodeValidationResult().setCode(code).setDisplay(display);
+    return new CodeValidationResult()
+        .setSeverity(IssueSeverity.ERROR)
+        .setMessage("The code '" + (system != null ? system + "#" : "") + code + "' is not in the value set " + url);
+  }
+
+  private Codes compile(ValidationSupportContext context, IBaseResource valueSet) {
+    ValueSetExpansionOutcome outcome = context.getRootValidationSupport().expandValueSet(context,
+        new ValueSetExpansionOptions().setCount(MAX_EXPANSION + 1), valueSet);
+    if (outcome == null || outcome.getValueSet() == null)
+      return new Codes(null, null);
+    Set<String> codings = new HashSet<>();
+    Set<String> codes = new HashSet<>();
+    add(_terser.getValues(outcome.getValueSet(), "ValueSet.expansion.contains"), codings, codes);
+    if (codings.size() > MAX_EXPANSION)
+      return new Codes(null, null);
+    return new Codes(codings, codes);
+  }
+
+  // (the expansion can be nested, when it includes the hierarchy, abstract codes aren't members)
+  private void add(List<IBase> contains, Set<String> codings, Set<String> codes) {
+    for (IBase item : contains) {
+      String code = _terser.getSinglePrimitiveValueOrNull(item, "code");
+      if (code != null && !"true".equals(_terser.getSinglePrimitiveValueOrNull(item, "abstract"))) {
+        codings.add(_terser.getSinglePrimitiveValueOrNull(item, "system") + "|" + code);
+        codes.add(code);
+      }
+      add(_terser.getValues(item, "contains"), codings, codes);
+    }
+  }
+
+  public long size() {
+    return _cache.estimatedSize();
+  }
+
+  public void clear() {
+    _cache.invalidateAll();
+  }
+}
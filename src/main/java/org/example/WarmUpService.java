@@ -0,0 +1,111 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/*
+ * Once the application has started, preload the core definitions into the shared worker contexts
+ * and run some representative expressions/maps through the evaluators (so the first requests
+ * after a deploy don't pay for loading the definitions, or run un-jitted code).
+ * Until this has completed the `warmup` health is OUT_OF_SERVICE, which is included in the
+ * actuator readiness group. If the warm up fails it is logged and the health is still UP (with
+ * the error in the details), the evaluators work, they just aren't warm.
+ * -Dfhirpath.warmup.iterations=0 skips running the expressions (the definitions are still preloaded)
+ */
+@Service("warmup")
+public class WarmUpService implements HealthIndicator {
+
+  static final Logger _log = LoggerFactory.getLogger(WarmUpService.class);
+
+  static final int ITERATIONS = Integer.getInteger("fhirpath.warmup.iterations", 50);
+
+  static final String[] EXPRESSIONS = {
+      "name.given",
+      "name.where(use = 'official').given.join(' ') & ' ' & family",
+      "birthDate < today() and gender = 'female'",
+      "identifier.where(system.startsWith('http')).value.first()",
+      "descendants().ofType(HumanName).count()",
+      "iif(active, 'active', 'inactive').trace('status')",
+      "telecom.select(system & ':' & value).distinct()",
+  };
+
+  static final String MAP = "map \"http://fhirpath-lab.com/StructureMap/warmup\" = \"WarmUp\"\n"
+      + "uses \"http://hl7.org/fhir/StructureDefinition/Patient\" as source\n"
+      + "uses \"http://hl7.org/fhir/StructureDefinition/Patient\" as target\n"
+      + "group patient(source src : Patient, target tgt : Patient) {\n"
+      + "  src.gender as g -> tgt.gender = g \"gender\";\n"
+      + "  src.name as n -> tgt.name as tn then {\n"
+      + "    n.family as f -> tn.family = f \"family\";\n"
+      + "  } \"name\";\n"
+      + "}\n";
+
+  private volatile Health _health = Health.outOfService().withDetail("status", "warming up").build();
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void onApplicationReady() {
+    Thread thread = new Thread(this::warmUp, "warmup");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void warmUp() {
+    long start = System.nanoTime();
+    try {
+      long resources = WorkerContexts.preload();
+      long preloaded = System.nanoTime();
+
+      EvaluatorHAPI evaluator = new EvaluatorHAPI(WorkerContexts.getR4BContext(),
+          WorkerContexts.getR4BWorkerContext());
+      EvaluatorHAPI_R5 evaluatorR5 = new EvaluatorHAPI_R5(WorkerContexts.getR5Context());
+      org.hl7.fhir.r4b.model.Patient patient = (org.hl7.fhir.r4b.model.Patient) WorkerContexts.getR4BContext()
+          .newJsonParser().parseResource(samplePatient());
+      org.hl7.fhir.r5.model.Patient patientR5 = (org.hl7.fhir.r5.model.Patient) WorkerContexts.getR5Context()
+          .newJsonParser().parseResource(samplePatient());
+      for (int i = 0; i < ITERATIONS; i++) {
+        for (String expression : EXPRESSIONS) {
+          evaluator.evaluate(null, patient, null, expression, null, null, null, null, null, null, null);
+          evaluatorR5.evaluate(null, patientR5, null, expression, null, null, null);
+        }
+        evaluator.evaluate(null, patient, "name", "given", null, null, null, null, null, null, null);
+        evaluator.transform(null, patient, MAP, null, null);
+      }
+
+      Health.Builder health = Health.up()
+          .withDetail("conformanceResources", resources)
+          .withDetail("preloadMs", TimeUnit.NANOSECONDS.toMillis(preloaded - start))
+          .withDetail("warmupMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - preloaded));
+      if (WorkerContexts.MEASURE_HEAP)
+        health.withDetail("conformanceHeapBytes", java.util.Map.of(
+            "r4b", WorkerContexts.getHeapBytes("r4b"), "r5", WorkerContexts.getHeapBytes("r5")));
+      _health = health.build();
+    } catch (Exception e) {
+      // the evaluators still work (just aren't warm), so don't hold back the traffic
+      _log.warn("Warm up failed, serving requests without it", e);
+      _health = Health.up()
+          .withDetail("status", "warm up failed, serving requests without it")
+          .withDetail("warmupError", String.valueOf(e.getMessage()))
+          .build();
+    }
+  }
+
+  private static String samplePatient() {
+    return "{\"resourceType\":\"Patient\",\"id\":\"warmup\",\"active\":true,"
+        + "\"identifier\":[{\"system\":\"http://example.org/mrn\",\"value\":\"12345\"}],"
+        + "\"name\":[{\"use\":\"official\",\"family\":\"Chalmers\",\"given\":[\"Peter\",\"James\"]},"
+        + "{\"use\":\"usual\",\"given\":[\"Jim\"]}],"
+        + "\"telecom\":[{\"system\":\"phone\",\"value\":\"(03) 5555 6473\"},{\"system\":\"email\",\"value\":\"jim@example.org\"}],"
+        + "\"gender\":\"male\",\"birthDate\":\"1974-12-25\"}";
+  }
+
+  @Override
+  public Health health() {
+    return _health;
+  }
+}
@@ -0,0 +1,142 @@
+package org.example;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+
+/*
+ * The FhirContext and worker context for each FHIR version, shared by all the servers and
+ * evaluators (rather than each building its own, and loading the core definitions again).
+ * Each version is created on first use (by the servers as they start), which loads all of its
+ * core conformance resources (StructureDefinitions, ValueSets, CodeSystems) up front.
+ * The number of resources loaded for each version, and the heap they retain (the growth in
+ * the heap used across the load, with a gc either side) are published as
+ * fhirpath.worker.resources and fhirpath.worker.heap
+ * -Dfhirpath.worker.measureHeap=true to measure the heap (forcing the gcs slows the startup,
+ * otherwise fhirpath.worker.heap is 0)
+ */
+public class WorkerContexts {
+
+  static final boolean MEASURE_HEAP = Boolean.getBoolean("fhirpath.worker.measureHeap");
+
+  private static class R4B {
+    static final FhirContext fhirContext = FhirContext.forR4BCached();
+    static final Usage usage = new Usage("r4b");
+    static final DefaultProfileValidationSupport validationSupport = usage.load(fhirContext);
+    static final IValidationSupport validationChain = terminology(fhirContext, "r4b", validationSupport);
+    static final org.hl7.fhir.r4b.context.IWorkerContext workerContext = new org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext(
+        fhirContext, validationChain);
+  }
+
+  // (created on the first conformsTo())
+  private static class R4BProfiles {
+    static final ProfileValidator validator = new ProfileValidator(R4B.fhirContext, R4B.validationChain, "r4b");
+  }
+
+  private static class R5 {
+    static final FhirContext fhirContext = FhirContext.forR5Cached();
+    static final Usage usage = new Usage("r5");
+    static final DefaultProfileValidationSupport validationSupport = usage.load(fhirContext);
+    static final IValidationSupport validationChain = terminology(fhirContext, "r5", validationSupport);
+    static final org.hl7.fhir.r5.context.IWorkerContext workerContext = new org.hl7.fhir.r5.hapi.ctx.HapiWorkerContext(
+        fhirContext, validationChain);
+  }
+
+  // (created on the first conformsTo())
+  private static class R5Profiles {
+    static final ProfileValidator validator = new ProfileValidator(R5.fhirContext, R5.validationChain, "r5");
+  }
+
+  private static class Usage {
+    Usage(String fhirVersion) {
+      Gauge.builder("fhirpath.worker.resources", resources, AtomicLong::get)
+          .description("Conformance resources loaded into the worker context")
+          .tag("fhirVersion", fhirVersion)
+          .register(Metrics.globalRegistry);
+      Gauge.builder("fhirpath.worker.heap", heapBytes, AtomicLong::get)
+          .description("Approximate heap used by the conformance resources loaded into the worker context")
+          .tag("fhirVersion", fhirVersion)
+          .baseUnit("bytes")
+          .register(Metrics.globalRegistry);
+    }
+
+    final AtomicLong resources = new AtomicLong();
+    final AtomicLong heapBytes = new AtomicLong();
+
+    // create the validation support and load all its resources (measuring the heap they retain)
+    DefaultProfileValidationSupport load(FhirContext fhirContext) {
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      if (MEASURE_HEAP)
+        memory.gc();
+      long before = memory.getHeapMemoryUsage().getUsed();
+      DefaultProfileValidationSupport validationSupport = new DefaultProfileValidationSupport(fhirContext);
+      // (the value sets and code systems are loaded on the first lookup of one)
+      validationSupport.fetchAllStructureDefinitions();
+      validationSupport.fetchValueSet("http://hl7.org/fhir/ValueSet/administrative-gender");
+      validationSupport.fetchCodeSystem("http://hl7.org/fhir/administrative-gender");
+      resources.set(validationSupport.fetchAllConformanceResources().size());
+      if (MEASURE_HEAP) {
+        memory.gc();
+        heapBytes.set(Math.max(0, memory.getHeapMemoryUsage().getUsed() - before));
+      }
+      return validationSupport;
+    }
+  }
+
+  /*
+   * The core resources plus in memory terminology (expanding the core value sets and validating
+   * codes against them, for memberOf()), with the expanded value sets cached in front of it all.
+   */
+  static IValidationSupport terminology(FhirContext fhirContext, String fhirVersion,
+      DefaultProfileValidationSupport validationSupport) {
+    return new ValidationSupportChain(
+        new ValueSetMembershipCache(fhirContext, fhirVersion),
+        validationSupport,
+        new InMemoryTerminologyServerValidationSupport(fhirContext),
+        new CommonCodeSystemsTerminologyService(fhirContext));
+  }
+
+  public static FhirContext getR4BContext() {
+    return R4B.fhirContext;
+  }
+
+  public static org.hl7.fhir.r4b.context.IWorkerContext getR4BWorkerContext() {
+    return R4B.workerContext;
+  }
+
+  public static ProfileValidator getR4BProfileValidator() {
+    return R4BProfiles.validator;
+  }
+
+  public static FhirContext getR5Context() {
+    return R5.fhirContext;
+  }
+
+  public static org.hl7.fhir.r5.context.IWorkerContext getR5WorkerContext() {
+    return R5.workerContext;
+  }
+
+  public static ProfileValidator getR5ProfileValidator() {
+    return R5Profiles.validator;
+  }
+
+  // load the core conformance resources for both versions (if not already), returns the number loaded
+  public static long preload() {
+    return R4B.usage.resources.get() + R5.usage.resources.get();
+  }
+
+  public static long getHeapBytes(String fhirVersion) {
+    return "r5".equals(fhirVersion) ? R5.usage.heapBytes.get() : R4B.usage.heapBytes.get();
+  }
+}
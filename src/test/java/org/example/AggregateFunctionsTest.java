@@ -0,0 +1,60 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.hl7.fhir.exceptions.PathEngineException;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4b.model.Parameters;
+import org.hl7.fhir.r4b.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+
+class AggregateFunctionsTest {
+
+    private final FhirContext _ctx = FhirContext.forR4BCached();
+    private final EvaluatorHAPI _evaluator = new EvaluatorHAPI(_ctx,
+            new HapiWorkerContext(_ctx, new DefaultProfileValidationSupport(_ctx)));
+
+    // type:value of each result
+    private List<String> evaluate(String expression) {
+        Parameters response = (Parameters) _evaluator.evaluate(null, new Patient(), null, expression, null, null,
+                null, null, null, null, null);
+        return response.getParameter("result").getPart().stream()
+                .map(p -> p.getName() + ":" + p.getValue().primitiveValue())
+                .toList();
+    }
+
+    @Test
+    public void aggregatesOverNumbers() {
+        assertEquals(List.of("integer:6"), evaluate("(1 | 2 | 3).sum()"));
+        assertEquals(List.of("decimal:6.5"), evaluate("(1 | 2.5 | 3).sum()"));
+        assertEquals(List.of("integer:0"), evaluate("{}.sum()"));
+        assertEquals(List.of("decimal:2"), evaluate("(1 | 2 | 3).avg()"));
+        assertEquals(List.of("integer:1"), evaluate("(3 | 1 | 2).min()"));
+        assertEquals(List.of("decimal:3.5"), evaluate("(3 | 1 | 3.5).max()"));
+        assertEquals(List.of(), evaluate("{}.max()"));
+        // past the integer range
+        assertEquals(List.of("integer64:2147483648"), evaluate("(2147483647 | 1).sum()"));
+    }
+
+    @Test
+    public void nonNumbersAndUnknownFunctionsAreErrors() {
+        assertThrows(PathEngineException.class, () -> evaluate("('a' | 'b').sum()"));
+        Exception e = assertThrows(Exception.class, () -> evaluate("(1 | 2).median()"));
+        assertTrue(e.getMessage().contains("median"), e.getMessage());
+    }
+
+    @Test
+    public void registryUsesTheFirstFunctionWithAName() {
+        FunctionRegistry registry = new FunctionRegistry(List.of(new AggregateFunctions.Sum(),
+                new AggregateFunctions.Max(), new AggregateFunctions.Sum()));
+        assertEquals(List.of("sum", "max"), List.copyOf(registry.getNames()));
+        assertNull(registry.get("min"));
+
+        assertTrue(FunctionRegistry.getDefault().getNames().containsAll(List.of("sum", "min", "max", "avg")));
+    }
+}
@@ -0,0 +1,56 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4b.model.Coding;
+import org.hl7.fhir.r4b.model.ConceptMap;
+import org.hl7.fhir.r4b.model.ConceptMap.ConceptMapEquivalence;
+import org.hl7.fhir.r4b.model.ConceptMap.ConceptMapGroupComponent;
+import org.junit.jupiter.api.Test;
+
+class ConceptMapEngineTest {
+
+    private final ConceptMapEngine _engine = new ConceptMapEngine(null);
+
+    private static ConceptMap conceptMap() {
+        ConceptMap cm = new ConceptMap();
+        cm.setUrl("http://example.org/ConceptMap/gender");
+        cm.setVersion("1");
+
+        ConceptMapGroupComponent g = cm.addGroup()
+                .setSource("http://example.org/local-gender")
+                .setTarget("http://hl7.org/fhir/administrative-gender");
+        g.addElement().setCode("M").addTarget().setCode("male").setEquivalence(ConceptMapEquivalence.EQUIVALENT);
+        g.addElement().setCode("F").addTarget().setCode("female").setEquivalence(ConceptMapEquivalence.EQUIVALENT);
+        g.addElement().setCode("X").addTarget().setCode("other").setEquivalence(ConceptMapEquivalence.DISJOINT);
+
+        // the same code from another system
+        ConceptMapGroupComponent g2 = cm.addGroup()
+                .setSource("http://example.org/other-gender")
+                .setTarget("http://hl7.org/fhir/administrative-gender");
+        g2.addElement().setCode("M").addTarget().setCode("unknown").setEquivalence(ConceptMapEquivalence.WIDER);
+        return cm;
+    }
+
+    @Test
+    public void translatesBySystemAndCode() {
+        ConceptMap cm = conceptMap();
+        Coding result = _engine.translate(new Coding("http://example.org/local-gender", "F", null), cm);
+        assertEquals("http://hl7.org/fhir/administrative-gender", result.getSystem());
+        assertEquals("female", result.getCode());
+
+        assertEquals("unknown", _engine.translate(new Coding("http://example.org/other-gender", "M", null), cm).getCode());
+        assertNull(_engine.translate(new Coding("http://example.org/local-gender", "Z", null), cm));
+        assertNull(_engine.translate(new Coding("http://example.org/local-gender", "X", null), cm), "disjoint is not a match");
+    }
+
+    @Test
+    public void translatesByJustTheCode() {
+        ConceptMap cm = conceptMap();
+        assertEquals("female", _engine.translate(new Coding(null, "F", null), cm).getCode());
+
+        // M is in both groups
+        assertThrows(FHIRException.class, () -> _engine.translate(new Coding(null, "M", null), cm));
+    }
+}
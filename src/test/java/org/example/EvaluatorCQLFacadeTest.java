@@ -0,0 +1,216 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.r4b.model.Parameters;
+import org.hl7.fhir.r4b.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class EvaluatorCQLFacadeTest {
+
+    private final FhirContext _ctx = FhirContext.forR4BCached();
+    private final AtomicInteger _calls = new AtomicInteger();
+    private volatile long _delayMillis;
+    private HttpServer _server;
+    private String _serverUrl;
+
+    // a stub $cql server that answers every request with the same result
+    @BeforeEach
+    public void startServer() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        _server.createContext("/fhir/$cql", exchange -> {
+            _calls.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(_delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"return\",\"valueString\":\"Peter\"}]}"
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        _server.start();
+        _serverUrl = "http://localhost:" + _server.getAddress().getPort() + "/fhir";
+    }
+
+    @AfterEach
+    public void stopServer() {
+        _server.stop(0);
+    }
+
+    private static Patient patient() {
+        Patient patient = new Patient();
+        patient.setId("p1");
+        patient.addName().addGiven("Peter");
+        return patient;
+    }
+
+    @Test
+    public void resultsAreReturnedAndCached() {
+        EvaluatorCQLFacade evaluator = new EvaluatorCQLFacade(_ctx, 5000);
+
+        Parameters result = (Parameters) evaluator.evaluate(null, "Patient.name.given.first()", patient(), _serverUrl);
+        assertEquals("Peter", result.getParameter("result").getPartFirstRep().getValue().primitiveValue());
+
+        // the same expression over the same content doesn't go back to the server
+        Parameters again = (Parameters) evaluator.evaluate(null, "Patient.name.given.first()", patient(), _serverUrl);
+        assertEquals("Peter", again.getParameter("result").getPartFirstRep().getValue().primitiveValue());
+        assertEquals(1, _calls.get());
+
+        evaluator.evaluate(null, "Patient.name.given.last()", patient(), _serverUrl);
+        assertEquals(2, _calls.get());
+    }
+
+    @Test
+    public void slowServersTimeOut() {
+        EvaluatorCQLFacade evaluator = new EvaluatorCQLFacade(_ctx, 300);
+        _delayMillis = 3000;
+
+        long start = System.nanoTime();
+        assertThrows(BaseServerResponseException.class,
+                () -> evaluator.evaluate(null, "Patient.gender", patient(), _serverUrl));
+        assertTrue(System.nanoTime() - start < 2_000_000_000L, "should have timed out");
+    }
+
+    /*
+     * Just enough of the container's async request for evaluateAsync: the listener it adds, the
+     * statuses written, the body and how many times the request was completed
+     */
+    private static class AsyncRequest {
+        final List<Integer> statuses = new CopyOnWriteArrayList<>();
+        final StringWriter body = new StringWriter();
+        final PrintWriter writer = new PrintWriter(body);
+        final AtomicInteger completions = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile AsyncListener listener;
+
+        final AsyncContext async = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { AsyncContext.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("addListener"))
+                        listener = (AsyncListener) args[0];
+                    else if (method.getName().equals("complete")) {
+                        completions.incrementAndGet();
+                        completed.countDown();
+                    }
+                    return null;
+                });
+
+        final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("setStatus"))
+                        statuses.add((Integer) args[0]);
+                    else if (method.getName().equals("getWriter"))
+                        return writer;
+                    return null;
+                });
+
+        void awaitCompletion() throws InterruptedException {
+            assertTrue(completed.await(10, TimeUnit.SECONDS), "the request was not completed");
+        }
+    }
+
+    // wait for the work already on a single threaded pool to finish
+    private static void drain(IsolationPool pool) {
+        pool.call(() -> null, 10_000);
+    }
+
+    @Test
+    public void asyncResultsAreWrittenWhenReady() throws Exception {
+        IsolationPool pool = new IsolationPool("cql-async-test", 1, 10, 10_000);
+        EvaluatorCQLFacade evaluator = new EvaluatorCQLFacade(_ctx, 5000, pool);
+        AsyncRequest request = new AsyncRequest();
+
+        evaluator.evaluateAsync(request.async, request.response, "Patient.name.given.first() + 'async'",
+                patient(), _serverUrl);
+        request.awaitCompletion();
+
+        assertEquals(List.of(200), request.statuses);
+        assertEquals(1, request.completions.get());
+        Parameters result = _ctx.newJsonParser().parseResource(Parameters.class, request.body.toString());
+        assertEquals("Peter", result.getParameter("result").getPartFirstRep().getValue().primitiveValue());
+    }
+
+    @Test
+    public void asyncTimeoutsAreWrittenOnce() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            IsolationPool pool = new IsolationPool("cql-async-timeout-test", 1, 10, 10_000);
+            EvaluatorCQLFacade evaluator = new EvaluatorCQLFacade(_ctx, 5000, pool);
+            AsyncRequest request = new AsyncRequest();
+            _delayMillis = 1000;
+
+            evaluator.evaluateAsync(request.async, request.response, "Patient.name.given.first() + 'timeout'",
+                    patient(), _serverUrl);
+            // (as the container would, once the async timeout has passed)
+            request.listener.onTimeout(null);
+
+            assertEquals(List.of(503), request.statuses);
+            assertEquals(1, request.completions.get());
+            assertTrue(request.body.toString().contains("did not complete the request"), request.body.toString());
+            assertEquals(1, registry.get("fhirpath.pool.calls")
+                    .tags("pool", "cql-async-timeout-test", "outcome", "timeout").timer().count());
+
+            // the cancelled work finishing doesn't write to the response again
+            drain(pool);
+            assertEquals(List.of(503), request.statuses);
+            assertEquals(1, request.completions.get());
+        } finally {
+            Metrics.removeRegistry(registry);
+        }
+    }
+
+    @Test
+    public void asyncRequestsAreRejectedWhenThePoolIsFull() throws Exception {
+        IsolationPool pool = new IsolationPool("cql-async-rejected-test", 1, 1, 10_000);
+        EvaluatorCQLFacade evaluator = new EvaluatorCQLFacade(_ctx, 5000, pool);
+        CountDownLatch release = new CountDownLatch(1);
+        // (one running, one queued)
+        pool.submit(() -> release.await(10, TimeUnit.SECONDS));
+        pool.submit(() -> release.await(10, TimeUnit.SECONDS));
+        try {
+            AsyncRequest request = new AsyncRequest();
+            evaluator.evaluateAsync(request.async, request.response, "Patient.name.given.first() + 'rejected'",
+                    patient(), _serverUrl);
+
+            assertEquals(List.of(503), request.statuses);
+            assertEquals(1, request.completions.get());
+            assertTrue(request.body.toString().contains("too busy"), request.body.toString());
+            assertEquals(0, _calls.get());
+        } finally {
+            release.countDown();
+        }
+    }
+}
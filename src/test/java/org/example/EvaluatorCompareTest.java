@@ -0,0 +1,71 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4b.model.Parameters;
+import org.hl7.fhir.r4b.model.Patient;
+import org.hl7.fhir.r4b.model.StringType;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+class EvaluatorCompareTest {
+
+    private final FhirContext _ctx = FhirContext.forR4BCached();
+
+    // an engine that returns these values (once all the engines sharing the latch have started)
+    private static EvaluatorCompare.Engine engine(CountDownLatch started, String... values) {
+        return (resource, context, expression, variables) -> {
+            started.countDown();
+            if (!started.await(5, TimeUnit.SECONDS))
+                throw new IllegalStateException("the other engines didn't start");
+            Parameters response = new Parameters();
+            Parameters.ParametersParameterComponent result = response.addParameter().setName("result");
+            for (String value : values)
+                result.addPart().setName("string").setValue(new StringType(value));
+            return response;
+        };
+    }
+
+    private static List<String> summary(Parameters response, String name) {
+        return response.getParameter("summary").getPart().stream()
+                .filter(p -> name.equals(p.getName()))
+                .map(p -> p.getValue().primitiveValue())
+                .toList();
+    }
+
+    @Test
+    public void enginesRunConcurrentlyAndDifferencesAreSummarised() {
+        // (a and b can only finish if they are running at the same time)
+        CountDownLatch started = new CountDownLatch(2);
+        EvaluatorCompare compare = new EvaluatorCompare(_ctx)
+                .addEngine("a", engine(started, "x", "y"))
+                .addEngine("b", engine(started, "x", "z"))
+                .addEngine("c", (resource, context, expression, variables) -> {
+                    throw new IllegalStateException("not supported");
+                });
+
+        Parameters response = (Parameters) compare.compare(null, new Patient(), null, "name", null, null);
+
+        assertEquals(3, response.getParameters("engine").size());
+        assertEquals(List.of("false"), summary(response, "agree"));
+        assertEquals(List.of("a"), summary(response, "reference"));
+        assertEquals(List.of("b result[0][1] is 'z' (a has 'y')"), summary(response, "difference"));
+        assertEquals(List.of("c: not supported"), summary(response, "failed"));
+    }
+
+    @Test
+    public void selectedEnginesOnly() {
+        EvaluatorCompare compare = new EvaluatorCompare(_ctx)
+                .addEngine("a", engine(new CountDownLatch(0), "x"))
+                .addEngine("b", engine(new CountDownLatch(0), "x"));
+
+        Parameters response = (Parameters) compare.compare(null, new Patient(), null, "name", null, "b");
+        assertEquals(1, response.getParameters("engine").size());
+        assertEquals(List.of("true"), summary(response, "agree"));
+    }
+}
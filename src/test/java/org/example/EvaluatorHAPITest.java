@@ -0,0 +1,542 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.r4b.context.IWorkerContext;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4b.model.BooleanType;
+import org.hl7.fhir.r4b.model.Bundle;
+import org.hl7.fhir.r4b.model.Enumerations;
+import org.hl7.fhir.r4b.model.Observation;
+import org.hl7.fhir.r4b.model.Parameters;
+import org.hl7.fhir.r4b.model.Patient;
+import org.hl7.fhir.r4b.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+class EvaluatorHAPITest {
+    EvaluatorHAPITest() {
+        _ctx = FhirContext.forR4BCached();
+        IWorkerContext workerContext = new HapiWorkerContext(_ctx, new DefaultProfileValidationSupport(_ctx));
+        _evaluator = new EvaluatorHAPI(_ctx, workerContext);
+    }
+
+    private FhirContext _ctx;
+    private EvaluatorHAPI _evaluator;
+
+    private static Parameters.ParametersParameterComponent variable(String name, String value) {
+        Parameters.ParametersParameterComponent variables = new Parameters.ParametersParameterComponent();
+        variables.setName("variables");
+        variables.addPart().setName(name).setValue(new StringType(value));
+        return variables;
+    }
+
+    private static Parameters.ParametersParameterComponent getResult(Parameters response) {
+        for (var p : response.getParameter()) {
+            if (p.getName().equals("result"))
+                return p;
+        }
+        fail("No result in the response");
+        return null;
+    }
+
+    @Test
+    public void concurrentRequestsDontShareVariablesOrTraces() throws Exception {
+        Patient patient = new Patient();
+        patient.setId("example");
+        patient.addName().setFamily("Chalmers");
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int n = 0; n < 200; n++) {
+                final String value = "value-" + n;
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    Parameters response = (Parameters) _evaluator.evaluate(null, patient, null,
+                            "trace('trc', %v).select(%v)", variable("v", value), null, null, null, null, null, null);
+                    var result = getResult(response);
+
+                    var trace = result.getPart().get(0);
+                    assertEquals("trace", trace.getName());
+                    assertEquals(1, trace.getPart().size(), "trace should only have this request's value");
+                    assertEquals(value, trace.getPart().get(0).getValue().primitiveValue());
+
+                    assertEquals(2, result.getPart().size());
+                    assertEquals(value, result.getPart().get(1).getValue().primitiveValue());
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures)
+                f.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void contextExpressionCanUseVariables() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Chalmers").addGiven("Peter");
+        patient.addName().setFamily("Windsor").addGiven("Jim");
+
+        Parameters response = (Parameters) _evaluator.evaluate(null, patient, "name.where(family = %f)",
+                "given", variable("f", "Windsor"), null, null, null, null, null, null);
+        var result = getResult(response);
+        assertEquals("name.where(family = %f)[0]", result.getValue().primitiveValue());
+        assertEquals(1, result.getPart().size());
+        assertEquals("Jim", result.getPart().get(0).getValue().primitiveValue());
+    }
+
+    @Test
+    public void variablesDontHideTheModel() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Chalmers");
+
+        Parameters response = (Parameters) _evaluator.evaluate(null, patient, null,
+                "name.family | %name", variable("name", "Peter"), null, null, null, null, null, null);
+        var result = getResult(response);
+        assertEquals(2, result.getPart().size());
+        assertEquals("Chalmers", result.getPart().get(0).getValue().primitiveValue());
+        assertEquals("Peter", result.getPart().get(1).getValue().primitiveValue());
+    }
+
+    @Test
+    public void batchContinuesAfterAFailedExpression() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Chalmers").addGiven("Peter");
+
+        List<Parameters.ParametersParameterComponent> expressions = new ArrayList<>();
+        var named = new Parameters.ParametersParameterComponent().setName("expression");
+        named.addPart().setName("name").setValue(new StringType("family"));
+        named.addPart().setName("expression").setValue(new StringType("name.family"));
+        expressions.add(named);
+        expressions.add(new Parameters.ParametersParameterComponent().setName("expression")
+                .setValue(new StringType("name.given.(")));
+        expressions.add(new Parameters.ParametersParameterComponent().setName("expression")
+                .setValue(new StringType("name.given")));
+
+        Parameters response = (Parameters) _evaluator.evaluateBatch(null, patient, null, expressions, null);
+        assertEquals(4, response.getParameter().size(), "parameters + one group per expression");
+        assertEquals(1, response.getParameter().stream()
+                .flatMap(p -> p.getPart().stream()).filter(p -> p.getName().equals("resource")).count(),
+                "resource should only be echoed once");
+
+        var family = response.getParameter().get(1);
+        assertEquals("family", family.getValue().primitiveValue());
+        assertEquals("Chalmers", family.getPart().get(1).getPart().get(0).getValue().primitiveValue());
+
+        var failed = response.getParameter().get(2);
+        assertEquals("expression[1]", failed.getValue().primitiveValue());
+        assertEquals("error", failed.getPart().get(1).getName());
+
+        var given = response.getParameter().get(3);
+        assertEquals("Peter", given.getPart().get(1).getPart().get(0).getValue().primitiveValue());
+    }
+
+    @Test
+    public void parallelContextKeepsOrderAndTraces() {
+        Patient patient = new Patient();
+        for (int n = 0; n < 100; n++)
+            patient.addName().setFamily("family-" + n);
+
+        Parameters response = (Parameters) _evaluator.evaluate(null, patient, "name",
+                "trace('f', family).family", null, new BooleanType(false), new BooleanType(true),
+                null, null, null, null);
+        List<Parameters.ParametersParameterComponent> results = new ArrayList<>();
+        for (var p : response.getParameter()) {
+            if (p.getName().equals("result"))
+                results.add(p);
+        }
+        assertEquals(100, results.size());
+        for (int n = 0; n < 100; n++) {
+            var result = results.get(n);
+            assertEquals("name[" + n + "]", result.getValue().primitiveValue());
+            assertEquals("trace", result.getPart().get(0).getName());
+            assertEquals("family-" + n, result.getPart().get(0).getPart().get(0).getValue().primitiveValue());
+            assertEquals("family-" + n, result.getPart().get(1).getValue().primitiveValue());
+        }
+    }
+
+    @Test
+    public void compactMinimalResults() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Chalmers").addGiven("Peter");
+        patient.setBirthDateElement(new org.hl7.fhir.r4b.model.DateType("1974-12-25"));
+
+        Parameters response = (Parameters) _evaluator.evaluate(null, patient, null,
+                "trace('n', name).birthDate | name", null, null, null, new BooleanType(true),
+                new BooleanType(false), "minimal", null);
+        assertEquals(1, response.getParameter().size(), "only the result should be returned");
+        var result = getResult(response);
+        assertEquals(2, result.getPart().size(), "no trace output");
+        assertEquals("date", result.getPart().get(0).getName());
+        assertEquals("1974-12-25", result.getPart().get(0).getValue().primitiveValue());
+        assertEquals("HumanName", result.getPart().get(1).getName());
+        assertTrue(result.getPart().get(1).hasExtension("http://fhir.forms-lab.com/StructureDefinition/json-value"));
+    }
+
+    @Test
+    public void timingsEchoedWhenRequested() {
+        Patient patient = new Patient();
+        patient.addName().setFamily("Chalmers");
+
+        Parameters response = (Parameters) _evaluator.evaluate(null, patient, "name", "family", null,
+                null, null, null, null, null, new BooleanType(true));
+        var paramsPart = response.getParameter().get(0);
+        assertEquals("parameters", paramsPart.getName());
+        var timing = paramsPart.getPart().stream().filter(p -> p.getName().equals("timing")).findFirst()
+                .orElseThrow();
+        List<String> phases = timing.getPart().stream().map(p -> p.getName()).toList();
+        assertEquals(List.of("parse", "debug-tree", "context", "evaluate", "encode", "total"), phases);
+
+        response = (Parameters) _evaluator.evaluate(null, patient, "name", "family", null,
+                null, null, null, null, null, null);
+        assertTrue(response.getParameter().get(0).getPart().stream().noneMatch(p -> p.getName().equals("timing")));
+    }
+
+    @Test
+    public void parallelTimingsAreWallTime() {
+        Patient patient = new Patient();
+        for (int n = 0; n < 100; n++)
+            patient.addName().setFamily("family-" + n);
+
+        Parameters response = (Parameters) _evaluator.evaluate(null, patient, "name", "family", null,
+                null, new BooleanType(true), null, null, null, new BooleanType(true));
+        var timing = response.getParameter().get(0).getPart().stream().filter(p -> p.getName().equals("timing"))
+                .findFirst().orElseThrow();
+        List<String> phases = timing.getPart().stream().map(p -> p.getName()).toList();
+        // (the nodes' evaluate and encode are timed together, around all the threads)
+        assertEquals(List.of("parse", "debug-tree", "context", "evaluate", "total"), phases);
+        double evaluate = Double.parseDouble(timing.getPart().get(3).getValue().primitiveValue());
+        double total = Double.parseDouble(timing.getPart().get(4).getValue().primitiveValue());
+        assertTrue(evaluate <= total, evaluate + "ms evaluating in " + total + "ms");
+    }
+
+    @Test
+    public void largeInputGivesTheSameResultsWithEitherParser() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        for (int n = 0; n < 3; n++) {
+            Patient patient = new Patient();
+            patient.setId("p" + n);
+            patient.addName().setFamily("Family" + n).addGiven("Given" + n);
+            patient.addContact().addRelationship().setText("parent");
+            bundle.addEntry().setResource(patient);
+        }
+        byte[] json = _ctx.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+
+        List<List<String>> expected = null;
+        for (String parser : List.of("hapi", "element")) {
+            Parameters response = (Parameters) _evaluator.evaluateLarge(new ByteArrayInputStream(json), false,
+                    parser, "entry.resource", "name.family | name.given | name | contact | id", false, null, true);
+            List<List<String>> values = EvaluatorCompare.valuesOf(response);
+            assertEquals(3, values.size());
+            assertEquals(List.of("Family0", "Given0"), values.get(0).subList(0, 2));
+            if (expected == null)
+                expected = values;
+            assertEquals(expected, values, parser);
+            assertEquals("HumanName", getResult(response).getPart().get(2).getName());
+
+            var paramsPart = response.getParameter().get(0);
+            assertTrue(paramsPart.getPart().stream().anyMatch(p -> p.getName().equals("readAllocatedBytes")));
+        }
+    }
+
+    @Test
+    public void resolveFindsTheBundleEntries() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        int count = 2000;
+        for (int n = 0; n < count; n++) {
+            Patient patient = new Patient();
+            patient.setId("p" + n);
+            patient.addName().setFamily("Family" + n);
+            bundle.addEntry().setFullUrl("urn:uuid:patient-" + n).setResource(patient);
+            Observation obs = new Observation();
+            obs.setId("o" + n);
+            // half by Type/id (and version), half by the fullUrl
+            obs.getSubject().setReference(n % 2 == 0 ? "Patient/p" + n + "/_history/1" : "urn:uuid:patient-" + n);
+            bundle.addEntry().setResource(obs);
+        }
+        byte[] json = _ctx.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+
+        for (String parser : List.of("hapi", "element")) {
+            Parameters response = (Parameters) _evaluator.evaluateLarge(new ByteArrayInputStream(json), false, parser,
+                    null, "entry.resource.ofType(Observation).subject.resolve().name.family", false, null, false);
+            List<String> values = EvaluatorCompare.valuesOf(response).get(0);
+            assertEquals(count, values.size(), parser);
+            assertEquals("Family0", values.get(0));
+            assertEquals("Family" + (count - 1), values.get(count - 1));
+        }
+
+        Patient patient = new Patient();
+        patient.getManagingOrganization().setReference("Organization/missing");
+        Parameters response = (Parameters) _evaluator.evaluate(null, patient, null,
+                "managingOrganization.resolve()", null, null, null, null, null, null, null);
+        assertFalse(getResult(response).hasPart());
+    }
+
+    @Test
+    public void resolveFindsTheEntrysContainedResources() {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        for (int n = 0; n < 3; n++) {
+            // every entry has its own #p1
+            Patient patient = new Patient();
+            patient.setId("p1");
+            patient.addName().setFamily("Contained" + n);
+            Observation obs = new Observation();
+            obs.setId("o" + n);
+            obs.addContained(patient);
+            obs.getSubject().setReference("#p1");
+            bundle.addEntry().setResource(obs);
+        }
+        byte[] json = _ctx.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+
+        for (String parser : List.of("hapi", "element")) {
+            Parameters response = (Parameters) _evaluator.evaluateLarge(new ByteArrayInputStream(json), false, parser,
+                    null, "entry.resource.subject.resolve().name.family", false, null, false);
+            assertEquals(List.of("Contained0", "Contained1", "Contained2"),
+                    EvaluatorCompare.valuesOf(response).get(0), parser);
+        }
+
+        // (and the input's own contained resources)
+        Patient patient = new Patient();
+        patient.addContained(new org.hl7.fhir.r4b.model.Organization().setName("Org").setId("o1"));
+        patient.getManagingOrganization().setReference("#o1");
+        Parameters response = (Parameters) _evaluator.evaluate(null, patient, null,
+                "managingOrganization.resolve().name", null, null, null, null, null, null, null);
+        assertEquals("Org", getResult(response).getPart().get(0).getValue().primitiveValue());
+    }
+
+    @Test
+    public void transformComposesTheTargetAndCachesTheMap() {
+        String map = "map \"http://example.org/StructureMap/copy-gender\" = \"CopyGender\"\n"
+                + "uses \"http://hl7.org/fhir/StructureDefinition/Patient\" as source\n"
+                + "uses \"http://hl7.org/fhir/StructureDefinition/Patient\" as target\n"
+                + "group copy(source src : Patient, target tgt : Patient) {\n"
+                + "  src.gender as g -> tgt.gender = g \"gender\";\n"
+                + "}\n";
+        Patient patient = new Patient();
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+
+        Parameters response = (Parameters) _evaluator.transform(null, patient, map, null, null);
+        String result = response.getParameter("result").getValue().primitiveValue();
+        Patient target = (Patient) _ctx.newJsonParser().parseResource(result);
+        assertEquals(Enumerations.AdministrativeGender.FEMALE, target.getGender());
+
+        // the map is now registered by its url
+        response = (Parameters) _evaluator.transform(null, patient, null,
+                "http://example.org/StructureMap/copy-gender", null);
+        assertEquals(result, response.getParameter("result").getValue().primitiveValue());
+    }
+
+    private static final String BULK_MAP_URL = "http://example.org/StructureMap/bulk-gender";
+    private static final String BULK_MAP = "map \"" + BULK_MAP_URL + "\" = \"BulkGender\"\n"
+            + "uses \"http://hl7.org/fhir/StructureDefinition/Patient\" as source\n"
+            + "uses \"http://hl7.org/fhir/StructureDefinition/Patient\" as target\n"
+            + "group copy(source src : Patient, target tgt : Patient) {\n"
+            + "  src.id as i -> tgt.id = i \"id\";\n"
+            + "  src.gender as g -> tgt.gender = g \"gender\";\n"
+            + "}\n";
+
+    private static Patient bulkPatient(int n) {
+        Patient patient = new Patient();
+        patient.setId("p" + n);
+        patient.setGender(n % 2 == 0 ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE);
+        patient.addName().setFamily("Family" + n).addGiven("Given" + n);
+        return patient;
+    }
+
+    private String ndjson(int count, int badLine) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < count; n++)
+            sb.append(n == badLine ? "{\"resourceType\":\"Patient\",\"gender\":" : _ctx.newJsonParser().encodeResourceToString(bulkPatient(n)))
+                    .append("\n");
+        return sb.toString();
+    }
+
+    private String transformBulk(String body, String contentType, String sourceUrl, boolean parallel,
+            boolean bundleOutput) throws IOException {
+        StringWriter sw = new StringWriter();
+        _evaluator.transformBulk(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), contentType, null,
+                sourceUrl, parallel, bundleOutput, (contentTypeOut) -> sw);
+        return sw.toString();
+    }
+
+    @Test
+    public void transformBulkTakesParametersAndBundles() throws IOException {
+        Parameters parameters = new Parameters();
+        parameters.addParameter("map", BULK_MAP);
+        Bundle bundle = new Bundle();
+        for (int n = 0; n < 20; n++) {
+            parameters.addParameter().setName("resource").setResource(bulkPatient(n));
+            bundle.addEntry().setResource(bulkPatient(n));
+        }
+
+        // a batch-response bundle, in the input order
+        String output = transformBulk(_ctx.newJsonParser().encodeResourceToString(parameters), "application/fhir+json",
+                null, true, true);
+        Bundle response = (Bundle) _ctx.newJsonParser().parseResource(output);
+        assertEquals(Bundle.BundleType.BATCHRESPONSE, response.getType());
+        assertEquals(20, response.getEntry().size());
+        for (int n = 0; n < 20; n++) {
+            Bundle.BundleEntryComponent entry = response.getEntry().get(n);
+            assertEquals("200 OK", entry.getResponse().getStatus());
+            assertEquals("p" + n, entry.getResource().getIdElement().getIdPart());
+            assertEquals(bulkPatient(n).getGender(), ((Patient) entry.getResource()).getGender());
+        }
+
+        // (the map is now registered by its url) a Bundle in, ndjson out
+        String[] lines = transformBulk(_ctx.newJsonParser().encodeResourceToString(bundle), "application/fhir+json",
+                BULK_MAP_URL, false, false).split("\n");
+        assertEquals(20, lines.length);
+        for (int n = 0; n < 20; n++) {
+            Patient target = (Patient) _ctx.newJsonParser().parseResource(lines[n]);
+            assertEquals("p" + n, target.getIdElement().getIdPart());
+            assertFalse(target.hasName(), "only the mapped elements");
+        }
+
+        assertThrows(InvalidRequestException.class, () -> transformBulk(
+                _ctx.newJsonParser().encodeResourceToString(new Patient()), "application/fhir+json", BULK_MAP_URL,
+                false, false));
+    }
+
+    @Test
+    public void transformBulkReportsFailedSourcesInline() throws IOException {
+        _evaluator.transform(null, bulkPatient(0), BULK_MAP, null, null);
+        String input = ndjson(50, 7);
+
+        for (boolean parallel : List.of(false, true)) {
+            String[] lines = transformBulk(input, "application/fhir+ndjson", BULK_MAP_URL, parallel, false).split("\n");
+            assertEquals(50, lines.length);
+            assertTrue(lines[7].startsWith("{\"index\":7,\"error\":"), lines[7]);
+            for (int n = 0; n < 50; n++) {
+                if (n != 7)
+                    assertEquals("p" + n, _ctx.newJsonParser().parseResource(lines[n]).getIdElement().getIdPart());
+            }
+
+            Bundle response = (Bundle) _ctx.newJsonParser().parseResource(
+                    transformBulk(input, "application/fhir+ndjson", BULK_MAP_URL, parallel, true));
+            assertEquals(50, response.getEntry().size());
+            Bundle.BundleEntryComponent failed = response.getEntry().get(7);
+            assertEquals("422 Unprocessable Entity", failed.getResponse().getStatus());
+            assertFalse(failed.hasResource());
+            org.hl7.fhir.r4b.model.OperationOutcome outcome = (org.hl7.fhir.r4b.model.OperationOutcome) failed
+                    .getResponse().getOutcome();
+            assertEquals(org.hl7.fhir.r4b.model.OperationOutcome.IssueSeverity.ERROR,
+                    outcome.getIssueFirstRep().getSeverity());
+            assertTrue(outcome.getIssueFirstRep().hasDiagnostics());
+            assertEquals("p49", response.getEntry().get(49).getResource().getIdElement().getIdPart());
+        }
+    }
+
+    @Test
+    public void transformBulkReadsTheBulkDirectory(@TempDir Path directory) throws IOException {
+        _evaluator.transform(null, bulkPatient(0), BULK_MAP, null, null);
+        Files.writeString(directory.resolve("patients.ndjson"), ndjson(3, -1));
+        System.setProperty("fhirpath.bulk.directory", directory.toString());
+        try {
+            StringWriter sw = new StringWriter();
+            _evaluator.transformBulk(new ByteArrayInputStream(new byte[0]), null, "patients.ndjson", BULK_MAP_URL,
+                    false, false, (contentType) -> sw);
+            String[] lines = sw.toString().split("\n");
+            assertEquals(3, lines.length);
+            assertEquals("p2", _ctx.newJsonParser().parseResource(lines[2]).getIdElement().getIdPart());
+        } finally {
+            System.clearProperty("fhirpath.bulk.directory");
+        }
+    }
+
+    private String evaluateBulk(String body, String file, String context, String expression, boolean parallel)
+            throws IOException {
+        StringWriter sw = new StringWriter();
+        _evaluator.evaluateBulk(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), file, context,
+                expression, parallel, (contentType) -> sw);
+        return sw.toString();
+    }
+
+    @Test
+    public void bulkEvaluateWritesALinePerResource() throws IOException {
+        String input = ndjson(3, 1) + "{\"resourceType\":\"Patient\",\"active\":true}\n";
+
+        String[] lines = evaluateBulk(input, null, null, "name.given", false).split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("{\"index\":0,\"resourceType\":\"Patient\",\"id\":\"p0\",\"result\":["
+                + "{\"values\":[{\"type\":\"string\",\"value\":\"Given0\"}]}]}", lines[0]);
+        assertTrue(lines[1].startsWith("{\"index\":1,\"error\":"), lines[1]);
+        assertEquals("{\"index\":2,\"resourceType\":\"Patient\",\"id\":\"p2\",\"result\":["
+                + "{\"values\":[{\"type\":\"string\",\"value\":\"Given2\"}]}]}", lines[2]);
+        // (no id)
+        assertEquals("{\"index\":3,\"resourceType\":\"Patient\",\"result\":[{\"values\":[]}]}", lines[3]);
+
+        // anything other than a primitive is its json
+        lines = evaluateBulk(input, null, null, "name", false).split("\n");
+        assertEquals("{\"index\":0,\"resourceType\":\"Patient\",\"id\":\"p0\",\"result\":["
+                + "{\"values\":[{\"type\":\"HumanName\",\"json\":{\"family\":\"Family0\",\"given\":[\"Given0\"]}}]}]}",
+                lines[0]);
+
+        assertThrows(InvalidRequestException.class, () -> evaluateBulk(input, null, null, "name.(", false));
+    }
+
+    @Test
+    public void bulkEvaluateWithAContextKeepsTheOrder() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int n = 0; n < 100; n++) {
+            Patient patient = bulkPatient(n);
+            patient.addName().addGiven("Other" + n);
+            input.append(_ctx.newJsonParser().encodeResourceToString(patient)).append("\n");
+        }
+
+        String[] lines = evaluateBulk(input.toString(), null, "name", "given", true).split("\n");
+        assertEquals(100, lines.length);
+        for (int n = 0; n < 100; n++) {
+            assertEquals("{\"index\":" + n + ",\"resourceType\":\"Patient\",\"id\":\"p" + n + "\",\"result\":["
+                    + "{\"context\":\"name[0]\",\"values\":[{\"type\":\"string\",\"value\":\"Given" + n + "\"}]},"
+                    + "{\"context\":\"name[1]\",\"values\":[{\"type\":\"string\",\"value\":\"Other" + n + "\"}]}]}",
+                    lines[n]);
+        }
+    }
+
+    @Test
+    public void bulkFilesOnlyComeFromTheBulkDirectory(@TempDir Path directory) throws IOException {
+        Path bulk = Files.createDirectory(directory.resolve("bulk"));
+        Files.writeString(bulk.resolve("patients.ndjson"), ndjson(2, -1));
+        Files.writeString(directory.resolve("outside.ndjson"), ndjson(2, -1));
+        Files.createDirectory(bulk.resolve("folder"));
+
+        // not enabled
+        assertThrows(InvalidRequestException.class,
+                () -> evaluateBulk("", "patients.ndjson", null, "id", false));
+
+        System.setProperty("fhirpath.bulk.directory", bulk.toString());
+        try {
+            assertEquals(2, evaluateBulk("", "patients.ndjson", null, "id", false).split("\n").length);
+            assertThrows(InvalidRequestException.class,
+                    () -> evaluateBulk("", "../outside.ndjson", null, "id", false));
+            assertThrows(InvalidRequestException.class,
+                    () -> evaluateBulk("", directory.resolve("outside.ndjson").toString(), null, "id", false));
+            assertThrows(InvalidRequestException.class, () -> evaluateBulk("", "folder", null, "id", false));
+            assertThrows(InvalidRequestException.class, () -> evaluateBulk("", "missing.ndjson", null, "id", false));
+        } finally {
+            System.clearProperty("fhirpath.bulk.directory");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import org.junit.jupiter.api.Test;
+
+class IsolationPoolTest {
+
+    @Test
+    public void resultsAndErrorsComeBackToTheCaller() {
+        IsolationPool pool = new IsolationPool("test-results", 1, 1, 5000);
+        assertEquals("done", pool.call(() -> "done"));
+
+        InvalidRequestException e = assertThrows(InvalidRequestException.class,
+                () -> pool.call(() -> { throw new InvalidRequestException("bad expression"); }));
+        assertEquals("bad expression", e.getMessage());
+    }
+
+    @Test
+    public void slowWorkTimesOut() {
+        IsolationPool pool = new IsolationPool("test-timeout", 1, 1, 100);
+        UnclassifiedServerFailureException e = assertThrows(UnclassifiedServerFailureException.class,
+                () -> pool.call(() -> {
+                    Thread.sleep(5000);
+                    return null;
+                }));
+        assertEquals(503, e.getStatusCode());
+    }
+
+    @Test
+    public void fullQueueIsRejected() throws Exception {
+        IsolationPool pool = new IsolationPool("test-rejected", 1, 1, 5000);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            // one running, one queued
+            callers.submit(() -> pool.call(() -> release.await(5, TimeUnit.SECONDS)));
+            Thread.sleep(100);
+            callers.submit(() -> pool.call(() -> release.await(5, TimeUnit.SECONDS)));
+            Thread.sleep(100);
+
+            UnclassifiedServerFailureException e = assertThrows(UnclassifiedServerFailureException.class,
+                    () -> pool.call(() -> "too many"));
+            assertEquals(503, e.getStatusCode());
+        } finally {
+            release.countDown();
+            callers.shutdown();
+        }
+    }
+}
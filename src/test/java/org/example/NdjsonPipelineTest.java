@@ -0,0 +1,66 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+class NdjsonPipelineTest {
+
+    private static String input(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("{\"n\":").append(i).append("}\n");
+            if (i % 10 == 0)
+                sb.append("\n"); // blank lines are skipped
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void parallelOutputKeepsInputOrder() throws Exception {
+        StringWriter sw = new StringWriter();
+        long count = NdjsonPipeline.run(new BufferedReader(new StringReader(input(500))), sw, true,
+                (index, line) -> {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                    return index + ":" + line;
+                });
+
+        assertEquals(500, count);
+        String[] lines = sw.toString().split("\n");
+        assertEquals(500, lines.length);
+        for (int i = 0; i < lines.length; i++)
+            assertEquals(i + ":{\"n\":" + i + "}", lines[i]);
+    }
+
+    @Test
+    public void failuresAreReportedInline() throws Exception {
+        StringWriter sw = new StringWriter();
+        NdjsonPipeline.run(new BufferedReader(new StringReader(input(3))), sw, false,
+                (index, line) -> {
+                    if (index == 1)
+                        throw new IllegalStateException("bad line");
+                    return line;
+                });
+
+        String[] lines = sw.toString().split("\n");
+        assertEquals("{\"n\":0}", lines[0]);
+        assertEquals("{\"index\":1,\"error\":\"bad line\"}", lines[1]);
+        assertEquals("{\"n\":2}", lines[2]);
+    }
+
+    @Test
+    public void itemsAreWrittenWithTheSeparator() throws Exception {
+        var items = java.util.List.of("a", "b", "c").iterator();
+        StringWriter sw = new StringWriter();
+        long count = NdjsonPipeline.run(() -> items.hasNext() ? items.next() : null, sw, ",\n", true,
+                (index, item) -> "\"" + item + index + "\"");
+
+        assertEquals(3, count);
+        assertEquals("\"a0\",\n\"b1\",\n\"c2\"", sw.toString());
+    }
+}
@@ -0,0 +1,81 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4b.model.Bundle;
+import org.hl7.fhir.r4b.model.DateTimeType;
+import org.hl7.fhir.r4b.model.Enumerations;
+import org.hl7.fhir.r4b.model.Observation;
+import org.hl7.fhir.r4b.model.Parameters;
+import org.hl7.fhir.r4b.model.Patient;
+import org.hl7.fhir.r4b.model.Quantity;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+class ProfileValidatorTest {
+
+    private static final String VITAL_SIGNS = "http://hl7.org/fhir/StructureDefinition/vitalsigns";
+
+    private final FhirContext _ctx = WorkerContexts.getR4BContext();
+    private final EvaluatorHAPI _evaluator = new EvaluatorHAPI(_ctx, WorkerContexts.getR4BWorkerContext());
+
+    private List<String> evaluate(Bundle bundle, String expression) {
+        Parameters response = (Parameters) _evaluator.evaluate(null, bundle, null, expression, null, null,
+                null, null, null, null, null);
+        return response.getParameter("result").getPart().stream()
+                .map(p -> p.getValue().primitiveValue())
+                .toList();
+    }
+
+    private static Observation heartRate(boolean complete) {
+        Observation observation = new Observation();
+        observation.setStatus(Enumerations.ObservationStatus.FINAL);
+        observation.addCategory().addCoding()
+                .setSystem("http://terminology.hl7.org/CodeSystem/observation-category").setCode("vital-signs");
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+        observation.getSubject().setReference("Patient/example");
+        if (complete) {
+            observation.setEffective(new DateTimeType("2026-10-17T10:00:00Z"));
+            observation.setValue(new Quantity().setValue(72).setUnit("beats/minute")
+                    .setSystem("http://unitsofmeasure.org").setCode("/min"));
+        }
+        return observation;
+    }
+
+    @Test
+    public void conformsToValidatesTheResourcesOfTheProfilesType() {
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < 10; i++) {
+            bundle.addEntry().setResource(new Patient().addName(new org.hl7.fhir.r4b.model.HumanName().setFamily("p" + i)));
+            bundle.addEntry().setResource(heartRate(i % 2 == 0));
+        }
+
+        assertEquals(List.of("5"), evaluate(bundle, "entry.resource.where(conformsTo('" + VITAL_SIGNS + "')).count()"));
+        assertEquals(List.of("10"), evaluate(bundle,
+                "entry.resource.where(conformsTo('http://hl7.org/fhir/StructureDefinition/Patient')).count()"));
+        assertEquals(List.of("20"), evaluate(bundle,
+                "entry.resource.where(conformsTo('http://hl7.org/fhir/StructureDefinition/DomainResource')).count()"));
+        assertEquals(List.of("false"), evaluate(bundle,
+                "conformsTo('http://hl7.org/fhir/StructureDefinition/DomainResource')"));
+        assertThrows(FHIRException.class,
+                () -> evaluate(bundle, "entry.resource.where(conformsTo('http://example.org/missing')).count()"));
+    }
+
+    @Test
+    public void verdictsAreKeptForTheRequest() {
+        ProfileValidator validator = WorkerContexts.getR4BProfileValidator();
+        Observation observation = heartRate(false);
+
+        ProfileValidator.Verdicts verdicts = new ProfileValidator.Verdicts();
+        assertFalse(validator.conforms(observation, VITAL_SIGNS, verdicts));
+        observation.setEffective(new DateTimeType("2026-10-17T10:00:00Z"))
+                .setValue(new Quantity().setValue(72).setSystem("http://unitsofmeasure.org").setCode("/min"));
+        // (the same resource isn't validated again in the same request)
+        assertFalse(validator.conforms(observation, VITAL_SIGNS, verdicts));
+        assertTrue(validator.conforms(observation, VITAL_SIGNS, new ProfileValidator.Verdicts()));
+    }
+}
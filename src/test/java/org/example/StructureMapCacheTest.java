@@ -0,0 +1,56 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.hl7.fhir.r4b.model.StructureMap;
+import org.junit.jupiter.api.Test;
+
+class StructureMapCacheTest {
+
+    private final AtomicInteger _parseCount = new AtomicInteger();
+
+    private final Function<String, StructureMap> _parser = (text) -> {
+        _parseCount.incrementAndGet();
+        StructureMap map = new StructureMap();
+        map.setUrl(text.substring(text.indexOf('"') + 1, text.lastIndexOf('"')));
+        return map;
+    };
+
+    @Test
+    public void sameContentIsOnlyParsedOnce() {
+        StructureMapCache cache = new StructureMapCache("test");
+        StructureMap first;
+        try (StructureMapCache.Lease lease = cache.acquire("map \"http://example.org/a\"", _parser)) {
+            first = lease.getMap();
+        }
+        try (StructureMapCache.Lease lease = cache.acquire("map \"http://example.org/a\"", _parser)) {
+            assertSame(first, lease.getMap());
+        }
+        assertEquals(1, _parseCount.get());
+    }
+
+    @Test
+    public void concurrentLeasesDontShareAnInstance() {
+        StructureMapCache cache = new StructureMapCache("test");
+        try (StructureMapCache.Lease a = cache.acquire("map \"http://example.org/a\"", _parser);
+                StructureMapCache.Lease b = cache.acquire("map \"http://example.org/a\"", _parser)) {
+            assertNotSame(a.getMap(), b.getMap());
+        }
+        assertEquals(2, _parseCount.get());
+    }
+
+    @Test
+    public void mapsCanBeLeasedByUrl() {
+        StructureMapCache cache = new StructureMapCache("test");
+        assertNull(cache.acquireByUrl("http://example.org/b", _parser));
+
+        cache.acquire("map \"http://example.org/b\"", _parser).close();
+        try (StructureMapCache.Lease lease = cache.acquireByUrl("http://example.org/b", _parser)) {
+            assertEquals("http://example.org/b", lease.getMap().getUrl());
+        }
+        assertEquals(1, _parseCount.get());
+    }
+}
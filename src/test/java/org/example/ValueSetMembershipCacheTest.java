@@ -0,0 +1,75 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.r4b.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4b.model.Bundle;
+import org.hl7.fhir.r4b.model.CodeableConcept;
+import org.hl7.fhir.r4b.model.Enumerations;
+import org.hl7.fhir.r4b.model.Observation;
+import org.hl7.fhir.r4b.model.Parameters;
+import org.hl7.fhir.r4b.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+
+class ValueSetMembershipCacheTest {
+
+    private static final String GENDER = "'http://hl7.org/fhir/ValueSet/administrative-gender'";
+    private static final String STATUS = "'http://hl7.org/fhir/ValueSet/observation-status'";
+
+    private final FhirContext _ctx = FhirContext.forR4BCached();
+    private final ValueSetMembershipCache _cache = new ValueSetMembershipCache(_ctx, "r4b");
+    private final EvaluatorHAPI _evaluator = new EvaluatorHAPI(_ctx,
+            new HapiWorkerContext(_ctx, new ValidationSupportChain(_cache, new DefaultProfileValidationSupport(_ctx),
+                    new InMemoryTerminologyServerValidationSupport(_ctx))));
+
+    private List<String> evaluate(Bundle bundle, String expression) {
+        Parameters response = (Parameters) _evaluator.evaluate(null, bundle, null, expression, null, null,
+                null, null, null, null, null);
+        return response.getParameter("result").getPart().stream()
+                .map(p -> p.getValue().primitiveValue())
+                .toList();
+    }
+
+    @Test
+    public void memberOfChecksCodesCodingsAndConcepts() {
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < 500; i++) {
+            Patient patient = new Patient();
+            if (i % 2 == 0)
+                patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+            bundle.addEntry().setResource(patient);
+            Observation observation = new Observation();
+            observation.setStatus(Enumerations.ObservationStatus.FINAL);
+            observation.setCode(new CodeableConcept().addCoding(i % 5 == 0
+                    ? new org.hl7.fhir.r4b.model.Coding("http://hl7.org/fhir/observation-status", "amended", null)
+                    : new org.hl7.fhir.r4b.model.Coding("http://hl7.org/fhir/administrative-gender", "amended", null)));
+            bundle.addEntry().setResource(observation);
+        }
+
+        assertEquals(List.of("250"), evaluate(bundle,
+                "entry.resource.ofType(Patient).where(gender.memberOf(" + GENDER + ")).count()"));
+        assertEquals(List.of("500"), evaluate(bundle,
+                "entry.resource.ofType(Observation).where(status.memberOf(" + STATUS + ")).count()"));
+        assertEquals(List.of("100"), evaluate(bundle,
+                "entry.resource.ofType(Observation).where(code.memberOf(" + STATUS + ")).count()"));
+        assertEquals(List.of("100"), evaluate(bundle,
+                "entry.resource.ofType(Observation).where(code.coding.memberOf(" + STATUS + ")).count()"));
+        assertEquals(List.of("true", "false"), evaluate(bundle,
+                "('other'.memberOf(" + GENDER + ")) | ('cancelled'.memberOf(" + GENDER + "))"));
+        // each value set was only expanded once
+        assertEquals(2, _cache.size());
+    }
+
+    @Test
+    public void unknownValueSetsAreNotMembers() {
+        assertEquals(List.of(), evaluate(new Bundle(), "'male'.memberOf('http://example.org/ValueSet/missing')"));
+        assertEquals(0, _cache.size());
+    }
+}